@@ -0,0 +1,591 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the front end's finished trees on disk, keyed by a hash of the
+// source, so running an unchanged script again skips scanning, parsing,
+// optimizing, resolving and type inference. Everything those passes
+// record on the tree is stored with it.
+//
+// Entries are only written for sources that got through the front end
+// without errors. Warnings aren't stored, so a hit prints none.
+class AstCache {
+    // Bump whenever the tree or what the passes record on it changes, so
+    // older entries stop matching.
+    private static final int VERSION = 2;
+    private static final int MAGIC = 0x4c4f5841; // "LOXA"
+
+    private static final int NULL = 0;
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int LAMBDA = 4;
+    private static final int GROUPING = 5;
+    private static final int LITERAL = 6;
+    private static final int LOGICAL = 7;
+    private static final int UNARY = 8;
+    private static final int TERNARY = 9;
+    private static final int VARIABLE = 10;
+    private static final int BLOCK = 11;
+    private static final int EXPRESSION = 12;
+    private static final int FUNCTION = 13;
+    private static final int VAR = 14;
+    private static final int WHILE = 15;
+    private static final int IF = 16;
+    private static final int LOOP_CONTROL = 17;
+    private static final int RETURN = 18;
+    private static final int PRINT_SEXPR = 19;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private final Path directory;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // Returns null on a miss, including an entry that can't be read.
+    List<Stmt> load(ByteBuffer source) {
+        Path entry = entry(source);
+        if (Files.isRegularFile(entry)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(entry)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    List<Stmt> statements = new Reader(in).statements();
+                    hits.incrementAndGet();
+                    return statements;
+                }
+            } catch (IOException | RuntimeException error) {
+                // Treated as a miss; the entry is rewritten below.
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void store(ByteBuffer source, List<Stmt> statements) {
+        try {
+            Files.createDirectories(directory);
+            // Written aside and moved in, so a concurrent load never sees
+            // half an entry.
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                new Writer(out).statements(statements);
+            }
+            Files.move(temp, entry(source), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            Lox.context().err.println("Couldn't write AST cache entry: " + error.getMessage());
+        }
+    }
+
+    void printReport() {
+        Lox.context().err.printf("[cache] %d hits, %d misses%n", hits.get(), misses.get());
+    }
+
+    private Path entry(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest()) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name.append(".ast").toString());
+        } catch (NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        // Each distinct string is written once, then referred to by index.
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void statements(List<Stmt> statements) throws IOException {
+            try {
+                writeStatements(statements);
+            } catch (UncheckedIOException error) {
+                // The visitor methods can't declare IOException.
+                throw error.getCause();
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            integer(expr.depth);
+            integer(expr.slot);
+            integer(expr.local);
+            integer(expr.upvalue);
+            bool(expr.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            bool(expr.unboxed);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            integer(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLambdaExpr(Expr.Lambda expr) {
+            tag(LAMBDA);
+            integer(expr.params.size());
+            for (Token param : expr.params) {
+                token(param);
+            }
+            writeStatements(expr.body);
+            integer(expr.scopeSize);
+            integer(expr.upvalues.length);
+            for (int upvalue : expr.upvalues) {
+                integer(upvalue);
+            }
+            for (boolean captured : expr.capturedParams) {
+                bool(captured);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            bool(expr.unboxed);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            tag(TERNARY);
+            expr(expr.expression);
+            expr(expr.left);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            integer(expr.depth);
+            integer(expr.slot);
+            integer(expr.local);
+            integer(expr.upvalue);
+            bool(expr.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            writeStatements(stmt.statements);
+            integer(stmt.scopeSize);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION);
+            token(stmt.name);
+            expr(stmt.lambda);
+            integer(stmt.local);
+            bool(stmt.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            integer(stmt.local);
+            bool(stmt.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            expr(stmt.increment);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
+            tag(LOOP_CONTROL);
+            token(stmt.keyword);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            bool(stmt.tail);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+            tag(PRINT_SEXPR);
+            expr(stmt.expression);
+            return null;
+        }
+
+        private void writeStatements(List<Stmt> statements) {
+            integer(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                tag(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void token(Token token) {
+            integer(token.type.ordinal());
+            string(token.lexeme);
+            value(token.literal);
+            integer(token.line);
+        }
+
+        private void value(Object value) {
+            try {
+                if (value == null) {
+                    out.writeByte(0);
+                } else if (value instanceof Boolean) {
+                    out.writeByte((boolean)value ? 1 : 2);
+                } else if (value instanceof Double) {
+                    out.writeByte(3);
+                    out.writeDouble((double)value);
+                } else {
+                    out.writeByte(4);
+                    string((String)value);
+                }
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                integer(index);
+                return;
+            }
+
+            // A new string is written as the next free index, then its text.
+            integer(strings.size());
+            strings.put(string, strings.size());
+            try {
+                out.writeUTF(string);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void tag(int tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        private void bool(boolean value) {
+            tag(value ? 1 : 0);
+        }
+
+        // Zigzag varints, since most numbers here are small and -1 is common.
+        private void integer(int value) {
+            int encoded = (value << 1) ^ (value >> 31);
+            try {
+                while ((encoded & ~0x7f) != 0) {
+                    out.writeByte((encoded & 0x7f) | 0x80);
+                    encoded >>>= 7;
+                }
+                out.writeByte(encoded);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = integer();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Expr expr() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+            case NULL:
+                return null;
+            case ASSIGN: {
+                Expr.Assign expr = new Expr.Assign(token(), expr());
+                expr.depth = integer();
+                expr.slot = integer();
+                expr.local = integer();
+                expr.upvalue = integer();
+                expr.cell = bool();
+                return expr;
+            }
+            case BINARY: {
+                Expr.Binary expr = new Expr.Binary(expr(), token(), expr());
+                expr.unboxed = bool();
+                return expr;
+            }
+            case CALL: {
+                Expr callee = expr();
+                Token paren = token();
+                int count = integer();
+                List<Expr> arguments = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    arguments.add(expr());
+                }
+                return new Expr.Call(callee, paren, arguments);
+            }
+            case LAMBDA:
+                return lambda();
+            case GROUPING:
+                return new Expr.Grouping(expr());
+            case LITERAL:
+                return new Expr.Literal(value());
+            case LOGICAL:
+                return new Expr.Logical(expr(), token(), expr());
+            case UNARY: {
+                Expr.Unary expr = new Expr.Unary(token(), expr());
+                expr.unboxed = bool();
+                return expr;
+            }
+            case TERNARY:
+                return new Expr.Ternary(expr(), expr(), expr());
+            case VARIABLE: {
+                Expr.Variable expr = new Expr.Variable(token());
+                expr.depth = integer();
+                expr.slot = integer();
+                expr.local = integer();
+                expr.upvalue = integer();
+                expr.cell = bool();
+                return expr;
+            }
+            default:
+                throw new IOException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Expr.Lambda lambda() throws IOException {
+            int count = integer();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                params.add(token());
+            }
+
+            Expr.Lambda lambda = new Expr.Lambda(params, statements());
+            lambda.scopeSize = integer();
+            lambda.upvalues = new int[integer()];
+            for (int i = 0; i < lambda.upvalues.length; i++) {
+                lambda.upvalues[i] = integer();
+            }
+            lambda.capturedParams = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                lambda.capturedParams[i] = bool();
+            }
+            return lambda;
+        }
+
+        private Stmt stmt() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+            case NULL:
+                return null;
+            case BLOCK: {
+                Stmt.Block stmt = new Stmt.Block(statements());
+                stmt.scopeSize = integer();
+                return stmt;
+            }
+            case EXPRESSION:
+                return new Stmt.Expression(expr());
+            case FUNCTION: {
+                Token name = token();
+                if (in.readByte() != LAMBDA) throw new IOException("Function without a body.");
+                Stmt.Function stmt = new Stmt.Function(name, lambda());
+                stmt.local = integer();
+                stmt.cell = bool();
+                return stmt;
+            }
+            case VAR: {
+                Stmt.Var stmt = new Stmt.Var(token(), expr());
+                stmt.local = integer();
+                stmt.cell = bool();
+                return stmt;
+            }
+            case WHILE:
+                return new Stmt.While(expr(), stmt(), expr());
+            case IF:
+                return new Stmt.If(expr(), stmt(), stmt());
+            case LOOP_CONTROL:
+                return new Stmt.LoopControl(token());
+            case RETURN: {
+                Stmt.Return stmt = new Stmt.Return(token(), expr());
+                stmt.tail = bool();
+                return stmt;
+            }
+            case PRINT_SEXPR:
+                return new Stmt.PrintSexpr(expr());
+            default:
+                throw new IOException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private Token token() throws IOException {
+            TokenType type = tokenTypes[integer()];
+            return new Token(type, string(), value(), integer());
+        }
+
+        private Object value() throws IOException {
+            switch (in.readByte()) {
+            case 0:  return null;
+            case 1:  return true;
+            case 2:  return false;
+            case 3:  return in.readDouble();
+            default: return string();
+            }
+        }
+
+        private String string() throws IOException {
+            int index = integer();
+            if (index == strings.size()) strings.add(in.readUTF());
+            return strings.get(index);
+        }
+
+        private boolean bool() throws IOException {
+            return in.readByte() != 0;
+        }
+
+        private int integer() throws IOException {
+            int encoded = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                encoded |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (encoded >>> 1) ^ -(encoded & 1);
+        }
+    }
+}
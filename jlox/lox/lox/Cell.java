@@ -0,0 +1,11 @@
+package lox;
+
+// Holds a local that some closure captures, so the closure and the frame
+// that declared it keep sharing one value after the frame is gone.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
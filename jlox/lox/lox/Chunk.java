@@ -0,0 +1,35 @@
+package lox;
+
+import java.util.Arrays;
+
+class Chunk {
+    byte[] code = new byte[8];
+    int[] lines = new int[8];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    void write(int b, int line) {
+        if (code.length < count + 1) {
+            code = Arrays.copyOf(code, code.length * 2);
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if (constants.length < constantCount + 1) {
+            constants = Arrays.copyOf(constants, constants.length * 2);
+        }
+
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    int getLine(int offset) {
+        return lines[offset];
+    }
+}
@@ -0,0 +1,418 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for the Jit: a constant pool,
+// fields, and methods whose code jumps between labels. Files are written as
+// version 49, which the JVM verifies by inference, so no stack map frames
+// are needed.
+class ClassFile {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int DUP_X2 = 0x5b;
+    static final int IADD = 0x60;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    // Thrown when the code outgrows what the format can address, like a
+    // jump over more than 32K of bytecode.
+    static class LimitExceeded extends RuntimeException {
+        LimitExceeded(String message) {
+            super(message);
+        }
+    }
+
+    static class Label {
+        private int offset = -1;
+        // The operand stack depth wherever this label is jumped from.
+        private int depth = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    class Code {
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int depth = 0;
+        private int maxDepth = 0;
+        private int maxLocals;
+
+        // Locals used by the code are counted as it is written; parameters
+        // have to be allowed for up front.
+        Code(int parameterSlots) {
+            maxLocals = parameterSlots;
+        }
+
+        void op(int opcode, int delta) {
+            emit(opcode);
+            adjust(delta);
+        }
+
+        void integer(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                emit(BIPUSH);
+                emit(value);
+                adjust(1);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                emit(SIPUSH);
+                emitShort(value);
+                adjust(1);
+            } else {
+                throw new LimitExceeded("Integer constant out of range.");
+            }
+        }
+
+        void constant(String value) {
+            index(LDC, LDC_W, pool("S" + value, () -> {
+                int utf8 = utf8(value);
+                poolBytes(8, utf8);
+            }), 1);
+        }
+
+        void constant(double value) {
+            emit(LDC2_W);
+            emitShort(doubleConstant(value));
+            adjust(2);
+        }
+
+        void load(int local) {
+            localOp(ALOAD, local, 1);
+        }
+
+        void loadInt(int local) {
+            localOp(ILOAD, local, 1);
+        }
+
+        void store(int local) {
+            localOp(ASTORE, local, -1);
+        }
+
+        void classConstant(String name) {
+            index(LDC, LDC_W, classRef(name), 1);
+        }
+
+        void checkcast(String type) {
+            emit(CHECKCAST);
+            emitShort(classRef(type));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            int size = slots(descriptor.charAt(0));
+            emit(opcode);
+            emitShort(memberRef(9, owner, name, descriptor));
+            switch (opcode) {
+            case GETSTATIC: adjust(size); break;
+            case PUTSTATIC: adjust(-size); break;
+            case GETFIELD:  adjust(size - 1); break;
+            default:        adjust(-size - 1);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int arguments = argumentSlots(descriptor);
+            int returns = slots(descriptor.charAt(descriptor.indexOf(')') + 1));
+            if (opcode != INVOKESTATIC) arguments++;
+
+            emit(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                emitShort(memberRef(11, owner, name, descriptor));
+                emit(arguments);
+                emit(0);
+            } else {
+                emitShort(memberRef(10, owner, name, descriptor));
+            }
+            adjust(returns - arguments);
+        }
+
+        void jump(int opcode, Label target) {
+            if (opcode != GOTO) adjust(-1);
+            target.depth = depth;
+
+            int at = length;
+            emit(opcode);
+            if (target.offset != -1) {
+                emitShort(offset(target.offset - at));
+            } else {
+                target.jumps.add(at);
+                emitShort(0);
+            }
+        }
+
+        // Code after an unconditional jump picks up the depth it is
+        // jumped to with.
+        void mark(Label label) {
+            label.offset = length;
+            if (label.depth != -1) depth = label.depth;
+            for (int at : label.jumps) {
+                int relative = offset(length - at);
+                code[at + 1] = (byte)(relative >> 8);
+                code[at + 2] = (byte)relative;
+            }
+            label.jumps.clear();
+        }
+
+        private void localOp(int opcode, int local, int delta) {
+            if (local > 0xff) throw new LimitExceeded("Too many locals.");
+            if (local >= maxLocals) maxLocals = local + 1;
+            emit(opcode);
+            emit(local);
+            adjust(delta);
+        }
+
+        private void index(int narrow, int wide, int index, int delta) {
+            if (index <= 0xff) {
+                emit(narrow);
+                emit(index);
+            } else {
+                emit(wide);
+                emitShort(index);
+            }
+            adjust(delta);
+        }
+
+        private int offset(int relative) {
+            if (relative < Short.MIN_VALUE || relative > Short.MAX_VALUE) {
+                throw new LimitExceeded("Jump too far.");
+            }
+            return relative;
+        }
+
+        private void adjust(int delta) {
+            depth += delta;
+            if (depth > maxDepth) maxDepth = depth;
+        }
+
+        private void emit(int b) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte)b;
+        }
+
+        private void emitShort(int value) {
+            emit(value >> 8);
+            emit(value);
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream memberBytes = new ByteArrayOutputStream();
+    private final DataOutputStream members = new DataOutputStream(memberBytes);
+    private int fieldCount = 0;
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    void field(int access, String name, String descriptor) {
+        try {
+            members.writeShort(access);
+            members.writeShort(utf8(name));
+            members.writeShort(utf8(descriptor));
+            members.writeShort(0);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        fieldCount++;
+    }
+
+    void method(int access, String name, String descriptor, Code code) {
+        if (code.length > 0xffff) throw new LimitExceeded("Method too large.");
+        try {
+            methods.writeShort(access);
+            methods.writeShort(utf8(name));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(1);
+            methods.writeShort(utf8("Code"));
+            methods.writeInt(12 + code.length);
+            methods.writeShort(code.maxDepth);
+            methods.writeShort(code.maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code.code, 0, code.length);
+            methods.writeShort(0);
+            methods.writeShort(0);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        methodCount++;
+    }
+
+    byte[] toBytes(String name, String superName, String... interfaces) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int[] interfaceRefs = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(interfaces[i]);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (int ref : interfaceRefs) {
+                out.writeShort(ref);
+            }
+            out.writeShort(fieldCount);
+            memberBytes.writeTo(out);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+        return pool("U" + value, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    private int classRef(String name) {
+        return pool("C" + name, () -> poolBytes(7, utf8(name)));
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        index = pool(key, () -> {
+            pool.writeByte(6);
+            pool.writeLong(bits);
+        });
+        // Doubles take up two entries.
+        poolCount++;
+        return index;
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        return pool(tag + owner + "." + name + descriptor, () -> {
+            int ownerRef = classRef(owner);
+            int nameAndType = pool("N" + name + descriptor, () -> {
+                int nameRef = utf8(name);
+                int typeRef = utf8(descriptor);
+                pool.writeByte(12);
+                pool.writeShort(nameRef);
+                pool.writeShort(typeRef);
+            });
+            pool.writeByte(tag);
+            pool.writeShort(ownerRef);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private void poolBytes(int tag, int index) throws IOException {
+        pool.writeByte(tag);
+        pool.writeShort(index);
+    }
+
+    private interface Entry {
+        void write() throws IOException;
+    }
+
+    // Entries an entry refers to are added first, so they end up before it.
+    private int pool(String key, Entry entry) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        try {
+            entry.write();
+        } catch (UTFDataFormatException error) {
+            throw new LimitExceeded("String constant too long.");
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        if (poolCount > 0xfffe) throw new LimitExceeded("Too many constants.");
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private static int slots(char type) {
+        switch (type) {
+        case 'V': return 0;
+        case 'D': case 'J': return 2;
+        default:  return 1;
+        }
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int count = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char type = descriptor.charAt(i);
+            count += slots(type);
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+        }
+        return count;
+    }
+}
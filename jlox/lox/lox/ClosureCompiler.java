@@ -0,0 +1,653 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns the resolved tree into a tree of Java lambdas, once, for the
+// ClosureInterpreter to run. Everything the Interpreter looks up on each
+// visit is settled here instead: the operator picks which lambda is built,
+// slots, upvalue indexes and literals are captured as constants, and the
+// nodes the TypeInferrer proved numeric become lambdas returning double.
+// Running a node is then one interface call, with no accept() double
+// dispatch and no switch on the operator.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>,
+        Stmt.Visitor<ClosureCompiler.Exec> {
+    interface Eval {
+        Object eval(Frame frame);
+    }
+
+    interface EvalDouble {
+        double eval(Frame frame);
+    }
+
+    interface Exec {
+        Completion exec(Frame frame);
+    }
+
+    // One call's locals, sized for the function, and the cells its closure
+    // captured. A return leaves its value here for the call to collect, or
+    // for a call in tail position, the function to run next and its
+    // callee's locals with the arguments already in place.
+    static final class Frame {
+        final Object[] locals;
+        final Cell[] upvalues;
+        Object returnValue;
+        ClosureFunction tailCall;
+        Object[] tailLocals;
+
+        Frame(Object[] locals, Cell[] upvalues) {
+            this.locals = locals;
+            this.upvalues = upvalues;
+        }
+    }
+
+    // A compiled function body, shared by every closure made from it.
+    static final class Code {
+        final Token name;
+        final int arity;
+        final int frameSize;
+        final boolean[] capturedParams;
+        final int[] upvalues;
+        final Exec body;
+
+        Code(Token name, int arity, int frameSize, boolean[] capturedParams,
+             int[] upvalues, Exec body) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+            this.capturedParams = capturedParams;
+            this.upvalues = upvalues;
+            this.body = body;
+        }
+    }
+
+    private static final AstPrinter astPrinter = new AstPrinter();
+    private final Environment globals;
+    // Slots the function being compiled needs, grown by each local it
+    // declares.
+    private int frameSize = 0;
+
+    ClosureCompiler(Environment globals) {
+        this.globals = globals;
+    }
+
+    // Top-level code gets a frame of its own for the locals of its blocks.
+    // Like the Interpreter, it runs every statement whatever the one before
+    // completed with.
+    Code compile(List<Stmt> statements) {
+        frameSize = 0;
+        Exec[] statementCode = new Exec[statements.size()];
+        for (int i = 0; i < statementCode.length; i++) {
+            statementCode[i] = compile(statements.get(i));
+        }
+
+        Exec body = frame -> {
+            for (Exec statement : statementCode) {
+                statement.exec(frame);
+            }
+            return Completion.NORMAL;
+        };
+        return new Code(null, 0, frameSize, new boolean[0], new int[0], body);
+    }
+
+    Eval compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Exec compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        int local = expr.local;
+        int upvalue = expr.upvalue;
+
+        if (local != -1 && expr.cell) {
+            return frame -> ((Cell)frame.locals[local]).value = value.eval(frame);
+        }
+        if (local != -1) return frame -> frame.locals[local] = value.eval(frame);
+        if (upvalue != -1) return frame -> frame.upvalues[upvalue].value = value.eval(frame);
+
+        Token name = expr.name;
+        return frame -> {
+            Object result = value.eval(frame);
+            globals.assign(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        Token operator = expr.operator;
+        if (expr.unboxed) return unboxed(expr);
+
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+
+        // Each operator tests for numbers itself and leaves anything else,
+        // errors included, to Interpreter.binary().
+        switch (operator.type) {
+        case PLUS:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) {
+                    return Interpreter.box((double)a + (double)b);
+                }
+                return Interpreter.binary(operator, a, b);
+            };
+        case MINUS:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) {
+                    return Interpreter.box((double)a - (double)b);
+                }
+                return Interpreter.binary(operator, a, b);
+            };
+        case STAR:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) {
+                    return Interpreter.box((double)a * (double)b);
+                }
+                return Interpreter.binary(operator, a, b);
+            };
+        case SLASH:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) {
+                    return Interpreter.box((double)a / (double)b);
+                }
+                return Interpreter.binary(operator, a, b);
+            };
+        case GREATER:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) return (double)a > (double)b;
+                return Interpreter.binary(operator, a, b);
+            };
+        case GREATER_EQUAL:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) return (double)a >= (double)b;
+                return Interpreter.binary(operator, a, b);
+            };
+        case LESS:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) return (double)a < (double)b;
+                return Interpreter.binary(operator, a, b);
+            };
+        case LESS_EQUAL:
+            return frame -> {
+                Object a = left.eval(frame);
+                Object b = right.eval(frame);
+                if (a instanceof Double && b instanceof Double) return (double)a <= (double)b;
+                return Interpreter.binary(operator, a, b);
+            };
+        case EQUAL_EQUAL:
+            return frame -> Interpreter.isEqual(left.eval(frame), right.eval(frame));
+        case BANG_EQUAL:
+            return frame -> !Interpreter.isEqual(left.eval(frame), right.eval(frame));
+        case COMMA:
+            return frame -> {
+                left.eval(frame);
+                return right.eval(frame);
+            };
+        default:
+            return frame -> Interpreter.binary(operator, left.eval(frame), right.eval(frame));
+        }
+    }
+
+    private Eval unboxed(Expr.Binary expr) {
+        switch (expr.operator.type) {
+        case GREATER:
+        case GREATER_EQUAL:
+        case LESS:
+        case LESS_EQUAL:
+            break;
+        default:
+            EvalDouble value = compileDouble(expr);
+            return frame -> Interpreter.box(value.eval(frame));
+        }
+
+        EvalDouble left = compileDouble(expr.left);
+        EvalDouble right = compileDouble(expr.right);
+        switch (expr.operator.type) {
+        case GREATER:       return frame -> left.eval(frame) > right.eval(frame);
+        case GREATER_EQUAL: return frame -> left.eval(frame) >= right.eval(frame);
+        case LESS:          return frame -> left.eval(frame) < right.eval(frame);
+        default:            return frame -> left.eval(frame) <= right.eval(frame);
+        }
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr) {
+        Eval callee = compile(expr.callee);
+        Eval[] arguments = new Eval[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        return frame -> {
+            Object function = callee.eval(frame);
+            if (function instanceof ClosureFunction) {
+                ClosureFunction closure = (ClosureFunction)function;
+                if (closure.code.arity == arguments.length) {
+                    return closure.run(enter(closure, arguments, frame));
+                }
+            }
+            return call(paren, function, evaluate(arguments, frame));
+        };
+    }
+
+    // Evaluates the arguments straight into the callee's new frame.
+    private static Object[] enter(ClosureFunction closure, Eval[] arguments, Frame frame) {
+        Object[] locals = new Object[closure.code.frameSize];
+        for (int i = 0; i < arguments.length; i++) {
+            locals[i] = arguments[i].eval(frame);
+        }
+        return locals;
+    }
+
+    private static Object[] evaluate(Eval[] arguments, Frame frame) {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = arguments[i].eval(frame);
+        }
+        return values;
+    }
+
+    // Natives, and calls that are about to fail.
+    private static Object call(Token paren, Object function, Object[] arguments) {
+        if (!(function instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable callable = (LoxCallable)function;
+        if (arguments.length != callable.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    callable.arity() + " arguments but got " +
+                    arguments.length + ".");
+        }
+
+        if (callable instanceof NativeFunction) {
+            return ((NativeFunction)callable).call(arguments);
+        }
+        // Nothing else this engine runs uses the Interpreter.
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (Object argument : arguments) {
+            values.add(argument);
+        }
+        return callable.call(null, values);
+    }
+
+    @Override
+    public Eval visitLambdaExpr(Expr.Lambda expr) {
+        Code code = lambda(expr, null);
+        return frame -> new ClosureFunction(code, capture(code, frame));
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return frame -> value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return frame -> {
+                Object value = left.eval(frame);
+                return Interpreter.isTruthy(value) ? value : right.eval(frame);
+            };
+        }
+        return frame -> {
+            Object value = left.eval(frame);
+            return Interpreter.isTruthy(value) ? right.eval(frame) : value;
+        };
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        if (expr.unboxed) {
+            EvalDouble value = compileDouble(expr);
+            return frame -> Interpreter.box(value.eval(frame));
+        }
+
+        Eval right = compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            return frame -> !Interpreter.isTruthy(right.eval(frame));
+        }
+
+        Token operator = expr.operator;
+        return frame -> Interpreter.negate(operator, right.eval(frame));
+    }
+
+    @Override
+    public Eval visitTernaryExpr(Expr.Ternary expr) {
+        Eval condition = compile(expr.expression);
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        return frame -> Interpreter.isTruthy(condition.eval(frame))
+                ? left.eval(frame) : right.eval(frame);
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        int local = expr.local;
+        int upvalue = expr.upvalue;
+
+        if (local != -1 && expr.cell) return frame -> ((Cell)frame.locals[local]).value;
+        if (local != -1) return frame -> frame.locals[local];
+        if (upvalue != -1) return frame -> frame.upvalues[upvalue].value;
+
+        Token name = expr.name;
+        return frame -> globals.get(name);
+    }
+
+    // Only called on nodes the TypeInferrer marked unboxed, mirroring
+    // Interpreter.evaluateDouble(), so intermediate results stay unboxed.
+    private EvalDouble compileDouble(Expr expr) {
+        if (expr instanceof Expr.Binary && ((Expr.Binary)expr).unboxed) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            EvalDouble left = compileDouble(binary.left);
+            EvalDouble right = compileDouble(binary.right);
+
+            switch (binary.operator.type) {
+            case MINUS: return frame -> left.eval(frame) - right.eval(frame);
+            case PLUS:  return frame -> left.eval(frame) + right.eval(frame);
+            case SLASH: return frame -> left.eval(frame) / right.eval(frame);
+            case STAR:  return frame -> left.eval(frame) * right.eval(frame);
+            default:
+            }
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).unboxed) {
+            EvalDouble right = compileDouble(((Expr.Unary)expr).right);
+            return frame -> -right.eval(frame);
+        } else if (expr instanceof Expr.Literal) {
+            double value = (double)((Expr.Literal)expr).value;
+            return frame -> value;
+        } else if (expr instanceof Expr.Grouping) {
+            return compileDouble(((Expr.Grouping)expr).expression);
+        }
+
+        Eval value = compile(expr);
+        return frame -> (double)value.eval(frame);
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        // Its locals already have slots in the enclosing frame.
+        return sequence(stmt.statements);
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression = compile(stmt.expression);
+        return frame -> {
+            expression.eval(frame);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt) {
+        Code code = lambda(stmt.lambda, stmt.name);
+        int local = stmt.local;
+
+        if (local == -1) {
+            int symbol = stmt.name.symbol;
+            return frame -> {
+                globals.define(symbol, new ClosureFunction(code, capture(code, frame)), true);
+                return Completion.NORMAL;
+            };
+        }
+
+        declare(local);
+        if (stmt.cell) {
+            // The cell has to exist before a recursive function captures it.
+            return frame -> {
+                Cell cell = new Cell(null);
+                frame.locals[local] = cell;
+                cell.value = new ClosureFunction(code, capture(code, frame));
+                return Completion.NORMAL;
+            };
+        }
+        return frame -> {
+            frame.locals[local] = new ClosureFunction(code, capture(code, frame));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        Eval initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        int local = stmt.local;
+
+        if (local == -1) {
+            int symbol = stmt.name.symbol;
+            if (initializer == null) {
+                return frame -> {
+                    globals.define(symbol, null, false);
+                    return Completion.NORMAL;
+                };
+            }
+            return frame -> {
+                globals.define(symbol, initializer.eval(frame), true);
+                return Completion.NORMAL;
+            };
+        }
+
+        declare(local);
+        if (stmt.cell) {
+            return frame -> {
+                Cell cell = new Cell(null);
+                frame.locals[local] = cell;
+                if (initializer != null) cell.value = initializer.eval(frame);
+                return Completion.NORMAL;
+            };
+        }
+
+        // A slot reused from an earlier scope must not leak into an
+        // initializer that reads the variable it declares.
+        if (initializer == null) {
+            return frame -> {
+                frame.locals[local] = null;
+                return Completion.NORMAL;
+            };
+        }
+        return frame -> {
+            frame.locals[local] = null;
+            frame.locals[local] = initializer.eval(frame);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec body = compile(stmt.body);
+
+        if (stmt.increment == null) {
+            return frame -> {
+                while (Interpreter.isTruthy(condition.eval(frame))) {
+                    Completion completion = body.exec(frame);
+                    if (completion == Completion.BREAK) break;
+                    if (completion == Completion.RETURN) return completion;
+                }
+                return Completion.NORMAL;
+            };
+        }
+
+        Eval increment = compile(stmt.increment);
+        return frame -> {
+            while (Interpreter.isTruthy(condition.eval(frame))) {
+                Completion completion = body.exec(frame);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+                increment.eval(frame);
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return frame -> Interpreter.isTruthy(condition.eval(frame))
+                    ? thenBranch.exec(frame) : Completion.NORMAL;
+        }
+
+        Exec elseBranch = compile(stmt.elseBranch);
+        return frame -> Interpreter.isTruthy(condition.eval(frame))
+                ? thenBranch.exec(frame) : elseBranch.exec(frame);
+    }
+
+    @Override
+    public Exec visitLoopControlStmt(Stmt.LoopControl stmt) {
+        switch (stmt.keyword.type) {
+        case BREAK:    return frame -> Completion.BREAK;
+        case CONTINUE: return frame -> Completion.CONTINUE;
+        default:
+            Token keyword = stmt.keyword;
+            return frame -> {
+                throw new RuntimeError(keyword, "Invalid loop control statement.");
+            };
+        }
+    }
+
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) return tailCall((Expr.Call)stmt.value);
+
+        if (stmt.value == null) {
+            return frame -> {
+                frame.returnValue = null;
+                return Completion.RETURN;
+            };
+        }
+
+        Eval value = compile(stmt.value);
+        return frame -> {
+            frame.returnValue = value.eval(frame);
+            return Completion.RETURN;
+        };
+    }
+
+    // Leaves a call to a Lox function for the enclosing call to run in
+    // place of its own body, so tail recursion doesn't grow the Java
+    // stack. Anything else is called as usual.
+    private Exec tailCall(Expr.Call expr) {
+        Eval callee = compile(expr.callee);
+        Eval[] arguments = new Eval[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        return frame -> {
+            Object function = callee.eval(frame);
+            if (function instanceof ClosureFunction) {
+                ClosureFunction closure = (ClosureFunction)function;
+                if (closure.code.arity == arguments.length) {
+                    frame.tailLocals = enter(closure, arguments, frame);
+                    frame.tailCall = closure;
+                    return Completion.RETURN;
+                }
+            }
+            frame.returnValue = call(paren, function, evaluate(arguments, frame));
+            return Completion.RETURN;
+        };
+    }
+
+    @Override
+    public Exec visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        String astOutput = astPrinter.print(stmt.expression);
+        Eval value = compile(stmt.expression);
+        return frame -> {
+            Lox.context().out.println(astOutput + " → " +
+                    Interpreter.stringify(value.eval(frame)));
+            return Completion.NORMAL;
+        };
+    }
+
+    private Code lambda(Expr.Lambda expr, Token name) {
+        int enclosingFrameSize = frameSize;
+        frameSize = expr.params.size();
+        Exec body = sequence(expr.body);
+        Code code = new Code(name, expr.params.size(), frameSize,
+                expr.capturedParams, expr.upvalues, body);
+        frameSize = enclosingFrameSize;
+        return code;
+    }
+
+    private void declare(int local) {
+        frameSize = Math.max(frameSize, local + 1);
+    }
+
+    // Short bodies are common enough to skip the loop for.
+    private Exec sequence(List<Stmt> statements) {
+        Exec[] body = new Exec[statements.size()];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = compile(statements.get(i));
+        }
+
+        switch (body.length) {
+        case 0:
+            return frame -> Completion.NORMAL;
+        case 1:
+            return body[0];
+        case 2: {
+            Exec first = body[0];
+            Exec second = body[1];
+            return frame -> {
+                Completion completion = first.exec(frame);
+                if (completion != Completion.NORMAL) return completion;
+                return second.exec(frame);
+            };
+        }
+        default:
+            return frame -> {
+                for (Exec statement : body) {
+                    Completion completion = statement.exec(frame);
+                    if (completion != Completion.NORMAL) return completion;
+                }
+                return Completion.NORMAL;
+            };
+        }
+    }
+
+    // Gathers the cells a new closure captures from the frame it's made in.
+    private static Cell[] capture(Code code, Frame frame) {
+        Cell[] captured = new Cell[code.upvalues.length];
+        for (int i = 0; i < captured.length; i++) {
+            int index = code.upvalues[i];
+            if (index >= 0) {
+                captured[i] = (Cell)frame.locals[index];
+            } else {
+                captured[i] = frame.upvalues[-1 - index];
+            }
+        }
+        return captured;
+    }
+}
@@ -0,0 +1,55 @@
+package lox;
+
+import java.util.List;
+
+class ClosureFunction implements LoxCallable {
+    final ClosureCompiler.Code code;
+    private final Cell[] upvalues;
+
+    ClosureFunction(ClosureCompiler.Code code, Cell[] upvalues) {
+        this.code = code;
+        this.upvalues = upvalues;
+    }
+
+    @Override
+    public int arity() {
+        return code.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] locals = new Object[code.frameSize];
+        for (int i = 0; i < code.arity; i++) {
+            locals[i] = arguments.get(i);
+        }
+        return run(locals);
+    }
+
+    // Runs the body on locals that already hold the arguments. Tail calls
+    // it ends in are run here too, one after another, each in the frame
+    // the returning body set up for it.
+    Object run(Object[] locals) {
+        ClosureFunction function = this;
+        while (true) {
+            ClosureCompiler.Code code = function.code;
+            for (int i = 0; i < code.capturedParams.length; i++) {
+                if (code.capturedParams[i]) locals[i] = new Cell(locals[i]);
+            }
+
+            ClosureCompiler.Frame frame = new ClosureCompiler.Frame(locals, function.upvalues);
+            if (code.body.exec(frame) != Completion.RETURN) return null;
+            if (frame.tailCall == null) return frame.returnValue;
+
+            function = frame.tailCall;
+            locals = frame.tailLocals;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (code.name == null) {
+            return "<lambda>";
+        }
+        return "<fn " + code.name.lexeme + ">";
+    }
+}
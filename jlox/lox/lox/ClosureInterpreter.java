@@ -0,0 +1,35 @@
+package lox;
+
+import java.util.List;
+
+// Runs programs the ClosureCompiler has turned into lambdas. Each batch of
+// statements is compiled once, up front, and then run on a frame of its
+// own for the locals of top-level blocks.
+class ClosureInterpreter {
+    private final Environment globals = new Environment();
+
+    ClosureInterpreter() {
+        Interpreter.defineNatives(globals);
+    }
+
+    void interpret(List<Stmt> statements) {
+        ClosureCompiler.Code code = new ClosureCompiler(globals).compile(statements);
+
+        try {
+            code.body.exec(new ClosureCompiler.Frame(new Object[code.frameSize], new Cell[0]));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    void interpret(Expr expr) {
+        ClosureCompiler.Eval code = new ClosureCompiler(globals).compile(expr);
+
+        try {
+            Lox.context().out.println(Interpreter.stringify(
+                    code.eval(new ClosureCompiler.Frame(new Object[0], new Cell[0]))));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
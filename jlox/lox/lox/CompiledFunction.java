@@ -0,0 +1,8 @@
+package lox;
+
+// A function body the Jit turned into a JVM class. It reads its arguments
+// from the Interpreter's stack starting at base and keeps its locals in JVM
+// locals from then on.
+interface CompiledFunction {
+    Object call(Interpreter interpreter, Object[] stack, int base, Cell[] upvalues);
+}
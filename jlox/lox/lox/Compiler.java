@@ -0,0 +1,547 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import static lox.OpCode.*;
+
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final AstPrinter astPrinter = new AstPrinter();
+    private static final int UINT8_COUNT = 256;
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+
+        Loop(int scopeDepth) {
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private final Compiler enclosing;
+    private final ObjFunction function;
+    private final List<Local> locals = new ArrayList<>();
+    private final List<Upvalue> upvalues = new ArrayList<>();
+    private final Stack<Loop> loops = new Stack<>();
+    private int scopeDepth = 0;
+    private int line = 1;
+    private boolean hadError = false;
+
+    private Compiler(Compiler enclosing, ObjFunction function) {
+        this.enclosing = enclosing;
+        this.function = function;
+        if (enclosing != null) line = enclosing.line;
+
+        // Slot zero holds the function being called.
+        locals.add(new Local("", 0));
+    }
+
+    static ObjFunction compile(List<Stmt> statements) {
+        Compiler compiler = new Compiler(null, new ObjFunction(null));
+        for (Stmt statement : statements) {
+            compiler.compile(statement);
+        }
+
+        ObjFunction script = compiler.endCompiler();
+        return compiler.hadError ? null : script;
+    }
+
+    static ObjFunction compileExpression(Expr expression) {
+        Compiler compiler = new Compiler(null, new ObjFunction(null));
+        compiler.compile(expression);
+        compiler.emitByte(OP_RETURN);
+        return compiler.hadError ? null : compiler.function;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        emitVariable(expr.name, OP_SET_LOCAL, OP_SET_UPVALUE, OP_SET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            emitByte(OP_POP);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch (expr.operator.type) {
+        case GREATER:       emitByte(OP_GREATER); break;
+        case GREATER_EQUAL: emitByte(OP_GREATER_EQUAL); break;
+        case LESS:          emitByte(OP_LESS); break;
+        case LESS_EQUAL:    emitByte(OP_LESS_EQUAL); break;
+        case MINUS:         emitByte(OP_SUBTRACT); break;
+        case PLUS:          emitByte(OP_ADD); break;
+        case SLASH:         emitByte(OP_DIVIDE); break;
+        case STAR:          emitByte(OP_MULTIPLY); break;
+        case BANG_EQUAL:    emitBytes(OP_EQUAL, OP_NOT); break;
+        case EQUAL_EQUAL:   emitByte(OP_EQUAL); break;
+        default:
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitBytes(OP_CALL, expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        function(expr, null);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitByte(OP_NIL);
+        } else if (expr.value == Boolean.TRUE) {
+            emitByte(OP_TRUE);
+        } else if (expr.value == Boolean.FALSE) {
+            emitByte(OP_FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+
+            patchJump(elseJump);
+            emitByte(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+
+            emitByte(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch (expr.operator.type) {
+        case BANG:  emitByte(OP_NOT); break;
+        case MINUS: emitByte(OP_NEGATE); break;
+        default:
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.expression);
+        int elseJump = emitJump(OP_JUMP_IF_FALSE);
+
+        emitByte(OP_POP);
+        compile(expr.left);
+        int endJump = emitJump(OP_JUMP);
+
+        patchJump(elseJump);
+        emitByte(OP_POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        emitVariable(expr.name, OP_GET_LOCAL, OP_GET_UPVALUE, OP_GET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitByte(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+
+        // Locals are usable inside their own body so they can recurse.
+        if (scopeDepth > 0) {
+            addLocal(stmt.name);
+            function(stmt.lambda, stmt.name.lexeme);
+            return null;
+        }
+
+        function(stmt.lambda, stmt.name.lexeme);
+        emitGlobalOperand(OP_DEFINE_GLOBAL, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+
+        if (scopeDepth > 0) {
+            if (stmt.initializer != null) {
+                compile(stmt.initializer);
+            } else {
+                emitByte(OP_NIL);
+            }
+            addLocal(stmt.name);
+            return null;
+        }
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+            emitGlobalOperand(OP_DEFINE_GLOBAL, stmt.name);
+        } else {
+            emitGlobalOperand(OP_DECLARE_GLOBAL, stmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emitByte(OP_POP);
+
+        Loop loop = new Loop(scopeDepth);
+        loops.push(loop);
+        compile(stmt.body);
+        loops.pop();
+
+        for (int jump : loop.continueJumps) {
+            patchJump(jump);
+        }
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitByte(OP_POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitByte(OP_POP);
+
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emitByte(OP_POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OP_JUMP);
+
+        patchJump(thenJump);
+        emitByte(OP_POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
+        // The Resolver has already reported a break or continue outside a loop.
+        if (loops.isEmpty()) return null;
+        line = stmt.keyword.line;
+
+        Loop loop = loops.peek();
+        for (int i = locals.size() - 1;
+                i >= 0 && locals.get(i).depth > loop.scopeDepth; i--) {
+            emitByte(locals.get(i).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+
+        int jump = emitJump(OP_JUMP);
+        if (stmt.keyword.type == TokenType.BREAK) {
+            loop.breakJumps.add(jump);
+        } else {
+            loop.continueJumps.add(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emitByte(OP_NIL);
+        }
+        emitByte(OP_RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        compile(stmt.expression);
+        emitConstantOperand(OP_PRINT_SEXPR, astPrinter.print(stmt.expression));
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void function(Expr.Lambda lambda, String name) {
+        Compiler compiler = new Compiler(this, new ObjFunction(name));
+        compiler.beginScope();
+
+        for (Token param : lambda.params) {
+            compiler.function.arity++;
+            compiler.addLocal(param);
+        }
+        for (Stmt statement : lambda.body) {
+            compiler.compile(statement);
+        }
+
+        ObjFunction compiled = compiler.endCompiler();
+        hadError |= compiler.hadError;
+
+        emitConstantOperand(OP_CLOSURE, compiled);
+        for (Upvalue upvalue : compiler.upvalues) {
+            emitBytes(upvalue.isLocal ? 1 : 0, upvalue.index);
+        }
+    }
+
+    private ObjFunction endCompiler() {
+        emitBytes(OP_NIL, OP_RETURN);
+        function.upvalueCount = upvalues.size();
+        return function;
+    }
+
+    private void beginScope() {
+        scopeDepth++;
+    }
+
+    private void endScope() {
+        scopeDepth--;
+
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitByte(local.isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (locals.size() == UINT8_COUNT) {
+            error(name, "Too many local variables in function.");
+            return;
+        }
+
+        locals.add(new Local(name.lexeme, scopeDepth));
+    }
+
+    private int resolveLocal(Token name) {
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (name.lexeme.equals(locals.get(i).name)) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(Token name) {
+        if (enclosing == null) return -1;
+
+        int local = enclosing.resolveLocal(name);
+        if (local != -1) {
+            enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(name, local, true);
+        }
+
+        int upvalue = enclosing.resolveUpvalue(name);
+        if (upvalue != -1) {
+            return addUpvalue(name, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(Token name, int index, boolean isLocal) {
+        for (int i = 0; i < upvalues.size(); i++) {
+            Upvalue upvalue = upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (upvalues.size() == UINT8_COUNT) {
+            error(name, "Too many closure variables in function.");
+            return 0;
+        }
+
+        upvalues.add(new Upvalue(index, isLocal));
+        return upvalues.size() - 1;
+    }
+
+    private void emitVariable(Token name, byte localOp, byte upvalueOp, byte globalOp) {
+        int arg = resolveLocal(name);
+        if (arg != -1) {
+            emitBytes(localOp, arg);
+        } else if ((arg = resolveUpvalue(name)) != -1) {
+            emitBytes(upvalueOp, arg);
+        } else {
+            emitGlobalOperand(globalOp, name);
+        }
+    }
+
+    private void emitByte(int b) {
+        function.chunk.write(b, line);
+    }
+
+    private void emitBytes(int b1, int b2) {
+        emitByte(b1);
+        emitByte(b2);
+    }
+
+    private void emitConstant(Object value) {
+        int constant = function.chunk.addConstant(value);
+        if (constant < UINT8_COUNT) {
+            emitBytes(OP_CONSTANT, constant);
+        } else {
+            emitByte(OP_CONSTANT_LONG);
+            emitByte(constant & 0xff);
+            emitByte((constant >> 8) & 0xff);
+            emitByte((constant >> 16) & 0xff);
+        }
+    }
+
+    // Globals are addressed by their symbol rather than a name constant, so
+    // the VM finds them with an array index.
+    private void emitGlobalOperand(byte op, Token name) {
+        if (name.symbol > 0xffff) {
+            error(name, "Too many global names.");
+        }
+
+        emitByte(op);
+        emitByte((name.symbol >> 8) & 0xff);
+        emitByte(name.symbol & 0xff);
+    }
+
+    private void emitConstantOperand(byte op, Object value) {
+        int constant = function.chunk.addConstant(value);
+        if (constant > 0xffff) {
+            error(null, "Too many constants in one chunk.");
+        }
+
+        emitByte(op);
+        emitByte((constant >> 8) & 0xff);
+        emitByte(constant & 0xff);
+    }
+
+    private int emitJump(byte instruction) {
+        emitByte(instruction);
+        emitBytes(0xff, 0xff);
+        return function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the bytecode for the jump offset itself.
+        int jump = function.chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            error(null, "Too much code to jump over.");
+        }
+
+        function.chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        function.chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OP_LOOP);
+
+        int offset = function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) error(null, "Loop body too large.");
+
+        emitBytes((offset >> 8) & 0xff, offset & 0xff);
+    }
+
+    private void error(Token token, String message) {
+        if (token != null) {
+            Lox.error(token, message);
+        } else {
+            Lox.error(line, message);
+        }
+        hadError = true;
+    }
+}
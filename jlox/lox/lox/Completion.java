@@ -0,0 +1,9 @@
+package lox;
+
+// What the Interpreter's statements hand back instead of throwing: how the
+// statement finished, so loops and calls can act on break, continue and
+// return without unwinding the Java stack. A return's value waits in the
+// Interpreter until the call picks it up.
+enum Completion {
+    NORMAL, BREAK, CONTINUE, RETURN
+}
@@ -0,0 +1,191 @@
+package lox;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
+
+// Times the two ways of getting return, break and continue back to the
+// call or loop they belong to: throwing Return and LoopControl, which the
+// Interpreter used to do, and handing back a Completion, which it does now.
+//
+// The first section is a microbenchmark of the mechanism alone: plain Java
+// shaped like the Interpreter's visit methods, with no Lox involved. It
+// says what a throw costs against a returned flag, not how much faster
+// Lox programs got.
+//
+// The second section runs the same programs as Lox scripts through
+// Lox.main. Only this build runs them unless --baseline names the classes
+// of a build from before the change, which then runs them too, loaded on
+// its own so the two don't share a class. This build has everything that
+// came after the change too, so the gap between them is an upper bound on
+// what the change alone is worth:
+//
+//     git worktree add /tmp/before ad7c9f8^
+//     (cd /tmp/before/jlox/lox && javac -d classes lox/Lox.java)
+//     javac -d classes lox/ControlFlowBench.java
+//     java -cp classes lox.ControlFlowBench --baseline=/tmp/before/jlox/lox/classes
+class ControlFlowBench {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+    private static final Token BREAK = new Token(TokenType.BREAK, "break", null, 0);
+    private static final Token CONTINUE = new Token(TokenType.CONTINUE, "continue", null, 0);
+
+    private static final String FIB =
+            "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+            "fib(25);\n";
+    private static final String LOOP =
+            "var sum = 0;\n" +
+            "var odd = true;\n" +
+            "for (var i = 0; i < 1000000; i = i + 1) {\n" +
+            "    odd = !odd;\n" +
+            "    if (!odd) continue;\n" +
+            "    sum = sum + i;\n" +
+            "}\n";
+
+    private static Object returned;
+
+    public static void main(String[] args) throws Exception {
+        Path baseline = null;
+        for (String arg : args) {
+            if (arg.startsWith("--baseline=")) {
+                baseline = Paths.get(arg.substring("--baseline=".length()));
+            } else {
+                System.out.println("Usage: ControlFlowBench [--baseline=<classes>]");
+                System.exit(64);
+            }
+        }
+
+        System.out.println("Mechanism only, in plain Java:");
+        time("fib(25), exceptions", () -> fibThrowing(25));
+        time("fib(25), completions", () -> fibCompleting(25));
+        time("continue loop, exceptions", () -> loopThrowing(1_000_000));
+        time("continue loop, completions", () -> loopCompleting(1_000_000));
+
+        Path fib = script("fib", FIB);
+        Path loop = script("loop", LOOP);
+        System.out.println("Lox scripts, tree interpreter:");
+        Method current = Lox.class.getMethod("main", String[].class);
+        time("fib(25), this build", () -> run(current, fib));
+        time("continue loop, this build", () -> run(current, loop));
+
+        if (baseline == null) return;
+        if (!Files.isDirectory(baseline)) {
+            System.err.println("No classes directory at " + baseline.toAbsolutePath() + ".");
+            System.exit(66);
+        }
+        URLClassLoader loader = new URLClassLoader(new URL[] { baseline.toUri().toURL() },
+                ClassLoader.getPlatformClassLoader());
+        Method before = loader.loadClass("lox.Lox").getMethod("main", String[].class);
+        time("fib(25), baseline", () -> run(before, fib));
+        time("continue loop, baseline", () -> run(before, loop));
+    }
+
+    private static Object fibThrowing(double n) {
+        try {
+            fibBodyThrowing(n);
+        } catch (Return returnValue) {
+            return returnValue.value;
+        }
+        return null;
+    }
+
+    private static void fibBodyThrowing(double n) {
+        if (n < 2) throw new Return(n);
+        throw new Return((double)fibThrowing(n - 1) + (double)fibThrowing(n - 2));
+    }
+
+    private static Object fibCompleting(double n) {
+        if (fibBodyCompleting(n) == Completion.RETURN) {
+            Object value = returned;
+            returned = null;
+            return value;
+        }
+        return null;
+    }
+
+    private static Completion fibBodyCompleting(double n) {
+        if (n < 2) {
+            returned = n;
+            return Completion.RETURN;
+        }
+        returned = (double)fibCompleting(n - 1) + (double)fibCompleting(n - 2);
+        return Completion.RETURN;
+    }
+
+    private static Object loopThrowing(int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                loopBodyThrowing(i);
+                sum += i;
+            } catch (LoopControl controlStmt) {
+                if (controlStmt.keyword.type == TokenType.BREAK) {
+                    break;
+                } else if (controlStmt.keyword.type != TokenType.CONTINUE) {
+                    throw new RuntimeError(controlStmt.keyword, "Invalid loop control statement.");
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static void loopBodyThrowing(int i) {
+        if (i % 2 == 0) throw new LoopControl(CONTINUE);
+        if (i < 0) throw new LoopControl(BREAK);
+    }
+
+    private static Object loopCompleting(int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            Completion completion = loopBodyCompleting(i);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.NORMAL) sum += i;
+        }
+        return sum;
+    }
+
+    private static Completion loopBodyCompleting(int i) {
+        if (i % 2 == 0) return Completion.CONTINUE;
+        if (i < 0) return Completion.BREAK;
+        return Completion.NORMAL;
+    }
+
+    private static Path script(String name, String source) throws IOException {
+        Path path = Files.createTempFile(name, ".lox");
+        path.toFile().deleteOnExit();
+        Files.write(path, source.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    // Both builds are timed the same way, scanning and resolving included,
+    // so the only difference between them is the change.
+    private static Object run(Method main, Path script) {
+        try {
+            main.invoke(null, (Object)new String[] { script.toString() });
+        } catch (IllegalAccessException | InvocationTargetException error) {
+            throw new RuntimeException(error);
+        }
+        return null;
+    }
+
+    private static void time(String name, Supplier<Object> benchmark) {
+        for (int i = 0; i < WARMUP; i++) {
+            benchmark.get();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            benchmark.get();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-34s %8.2f ms%n", name, best / 1e6);
+    }
+}
@@ -0,0 +1,91 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The Interpreter under --heatmap: every node it runs has its executions
+// counted, and with timing on, the nanoseconds spent in it added up,
+// children and callees included. It keeps the trees it ran so a Heatmap
+// can map the counts back to source lines afterwards. Being a subclass
+// leaves the plain Interpreter's hot path untouched when it's not in use.
+class CountingInterpreter extends Interpreter {
+    private final boolean timed;
+    final List<Stmt> statements = new ArrayList<>();
+    final List<Expr> expressions = new ArrayList<>();
+    // The node evaluate() is running, which visitBinaryExpr() hands on to
+    // evaluateDouble() when it's unboxed.
+    private Expr evaluating = null;
+
+    private CountingInterpreter(boolean timed) {
+        this.timed = timed;
+    }
+
+    // Typed as a plain Interpreter so callers' bytecode doesn't make the
+    // verifier load this class, whose overrides would cost the Interpreter
+    // its direct calls, on runs that never use it.
+    static Interpreter create(boolean timed) {
+        return new CountingInterpreter(timed);
+    }
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        this.statements.addAll(statements);
+        super.interpret(statements);
+    }
+
+    @Override
+    void interpret(Expr expr) {
+        expressions.add(expr);
+        super.interpret(expr);
+    }
+
+    @Override
+    Object evaluate(Expr expr) {
+        expr.executions++;
+        evaluating = expr;
+        if (!timed) return super.evaluate(expr);
+
+        long start = System.nanoTime();
+        try {
+            return super.evaluate(expr);
+        } finally {
+            expr.nanos += System.nanoTime() - start;
+        }
+    }
+
+    // Nodes evaluateDouble() doesn't handle itself go on to evaluate(),
+    // which counts them.
+    @Override
+    double evaluateDouble(Expr expr) {
+        if (expr == evaluating || !unboxed(expr)) return super.evaluateDouble(expr);
+
+        expr.executions++;
+        if (!timed) return super.evaluateDouble(expr);
+
+        long start = System.nanoTime();
+        try {
+            return super.evaluateDouble(expr);
+        } finally {
+            expr.nanos += System.nanoTime() - start;
+        }
+    }
+
+    private static boolean unboxed(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).unboxed;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).unboxed;
+        return expr instanceof Expr.Literal || expr instanceof Expr.Grouping;
+    }
+
+    @Override
+    Completion execute(Stmt stmt) {
+        stmt.executions++;
+        if (!timed) return super.execute(stmt);
+
+        long start = System.nanoTime();
+        try {
+            return super.execute(stmt);
+        } finally {
+            stmt.nanos += System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package lox;
+
+import static lox.OpCode.*;
+
+class Debug {
+    static void disassembleFunction(ObjFunction function, String name) {
+        disassembleChunk(function.chunk, name);
+
+        for (int i = 0; i < function.chunk.constantCount; i++) {
+            Object constant = function.chunk.constants[i];
+            if (constant instanceof ObjFunction) {
+                disassembleFunction((ObjFunction)constant, constant.toString());
+            }
+        }
+    }
+
+    static void disassembleChunk(Chunk chunk, String name) {
+        Lox.context().out.println("== " + name + " ==");
+
+        for (int offset = 0; offset < chunk.count;) {
+            offset = disassembleInstruction(chunk, offset);
+        }
+    }
+
+    static int disassembleInstruction(Chunk chunk, int offset) {
+        Lox.context().out.printf("%04d ", offset);
+        if (offset > 0 && chunk.getLine(offset) == chunk.getLine(offset - 1)) {
+            Lox.context().out.print("   | ");
+        } else {
+            Lox.context().out.printf("%4d ", chunk.getLine(offset));
+        }
+
+        byte instruction = chunk.code[offset];
+        switch (instruction) {
+        case OP_CONSTANT:
+            return constantInstruction("OP_CONSTANT", chunk, offset, 1);
+        case OP_CONSTANT_LONG:
+            return constantInstruction("OP_CONSTANT_LONG", chunk, offset, 3);
+        case OP_NIL:           return simpleInstruction("OP_NIL", offset);
+        case OP_TRUE:          return simpleInstruction("OP_TRUE", offset);
+        case OP_FALSE:         return simpleInstruction("OP_FALSE", offset);
+        case OP_POP:           return simpleInstruction("OP_POP", offset);
+        case OP_GET_LOCAL:     return byteInstruction("OP_GET_LOCAL", chunk, offset);
+        case OP_SET_LOCAL:     return byteInstruction("OP_SET_LOCAL", chunk, offset);
+        case OP_GET_GLOBAL:    return globalInstruction("OP_GET_GLOBAL", chunk, offset);
+        case OP_DEFINE_GLOBAL: return globalInstruction("OP_DEFINE_GLOBAL", chunk, offset);
+        case OP_DECLARE_GLOBAL:
+            return globalInstruction("OP_DECLARE_GLOBAL", chunk, offset);
+        case OP_SET_GLOBAL:    return globalInstruction("OP_SET_GLOBAL", chunk, offset);
+        case OP_GET_UPVALUE:   return byteInstruction("OP_GET_UPVALUE", chunk, offset);
+        case OP_SET_UPVALUE:   return byteInstruction("OP_SET_UPVALUE", chunk, offset);
+        case OP_EQUAL:         return simpleInstruction("OP_EQUAL", offset);
+        case OP_GREATER:       return simpleInstruction("OP_GREATER", offset);
+        case OP_GREATER_EQUAL: return simpleInstruction("OP_GREATER_EQUAL", offset);
+        case OP_LESS:          return simpleInstruction("OP_LESS", offset);
+        case OP_LESS_EQUAL:    return simpleInstruction("OP_LESS_EQUAL", offset);
+        case OP_ADD:           return simpleInstruction("OP_ADD", offset);
+        case OP_SUBTRACT:      return simpleInstruction("OP_SUBTRACT", offset);
+        case OP_MULTIPLY:      return simpleInstruction("OP_MULTIPLY", offset);
+        case OP_DIVIDE:        return simpleInstruction("OP_DIVIDE", offset);
+        case OP_NOT:           return simpleInstruction("OP_NOT", offset);
+        case OP_NEGATE:        return simpleInstruction("OP_NEGATE", offset);
+        case OP_PRINT_SEXPR:   return constantInstruction("OP_PRINT_SEXPR", chunk, offset, 2);
+        case OP_JUMP:          return jumpInstruction("OP_JUMP", 1, chunk, offset);
+        case OP_JUMP_IF_FALSE: return jumpInstruction("OP_JUMP_IF_FALSE", 1, chunk, offset);
+        case OP_LOOP:          return jumpInstruction("OP_LOOP", -1, chunk, offset);
+        case OP_CALL:          return byteInstruction("OP_CALL", chunk, offset);
+        case OP_CLOSURE: {
+            int constant = readShort(chunk, offset + 1);
+            ObjFunction function = (ObjFunction)chunk.constants[constant];
+            Lox.context().out.printf("%-16s %4d %s%n", "OP_CLOSURE", constant, function);
+
+            offset += 3;
+            for (int i = 0; i < function.upvalueCount; i++) {
+                int isLocal = chunk.code[offset];
+                int index = chunk.code[offset + 1] & 0xff;
+                Lox.context().out.printf("%04d      |                     %s %d%n",
+                        offset, isLocal == 1 ? "local" : "upvalue", index);
+                offset += 2;
+            }
+            return offset;
+        }
+        case OP_CLOSE_UPVALUE: return simpleInstruction("OP_CLOSE_UPVALUE", offset);
+        case OP_RETURN:        return simpleInstruction("OP_RETURN", offset);
+        default:
+            Lox.context().out.println("Unknown opcode " + instruction);
+            return offset + 1;
+        }
+    }
+
+    private static int constantInstruction(String name, Chunk chunk,
+                                           int offset, int width) {
+        int constant;
+        if (width == 2) {
+            constant = readShort(chunk, offset + 1);
+        } else {
+            constant = 0;
+            for (int i = 0; i < width; i++) {
+                constant |= (chunk.code[offset + 1 + i] & 0xff) << (8 * i);
+            }
+        }
+
+        Lox.context().out.printf("%-16s %4d '%s'%n", name, constant,
+                Interpreter.stringify(chunk.constants[constant]));
+        return offset + 1 + width;
+    }
+
+    private static int globalInstruction(String name, Chunk chunk, int offset) {
+        int symbol = readShort(chunk, offset + 1);
+        Lox.context().out.printf("%-16s %4d '%s'%n", name, symbol, Lox.context().symbols.name(symbol));
+        return offset + 3;
+    }
+
+    private static int simpleInstruction(String name, int offset) {
+        Lox.context().out.println(name);
+        return offset + 1;
+    }
+
+    private static int byteInstruction(String name, Chunk chunk, int offset) {
+        Lox.context().out.printf("%-16s %4d%n", name, chunk.code[offset + 1] & 0xff);
+        return offset + 2;
+    }
+
+    private static int jumpInstruction(String name, int sign,
+                                       Chunk chunk, int offset) {
+        int jump = readShort(chunk, offset + 1);
+        Lox.context().out.printf("%-16s %4d -> %d%n", name, offset,
+                offset + 3 + sign * jump);
+        return offset + 3;
+    }
+
+    private static int readShort(Chunk chunk, int offset) {
+        return ((chunk.code[offset] & 0xff) << 8) | (chunk.code[offset + 1] & 0xff);
+    }
+}
@@ -1,66 +1,76 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
-    class Variable {
-        public Object value;
-        public boolean assignedTo;
-
-        Variable(Object object) {
-            this(object, false);
-        }
-
-        Variable(Object object, boolean assigned) {
-            value = object;
-            assignedTo = assigned;
-        }
-    }
+    // Slots of globals that were never declared, and of ones declared
+    // without an initializer and not yet assigned.
+    private static final Object UNDEFINED = new Object();
+    private static final Object UNASSIGNED = new Object();
 
     final Environment enclosing;
-    private final Map<String, Variable> values = new HashMap<>();
+    // Globals are indexed by the name's number in Symbols, locals by the
+    // slot the Resolver assigned.
+    private Object[] values;
+    private final Object[] slots;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        values = new Object[64];
+        Arrays.fill(values, UNDEFINED);
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[size];
     }
 
-    public void define(String name, Object value) {
-        define(name, value, true);
+    public void define(int symbol, Object value, boolean initialized) {
+        if (symbol >= values.length) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(length * 2, symbol + 1));
+            Arrays.fill(values, length, values.length, UNDEFINED);
+        }
+        values[symbol] = initialized ? value : UNASSIGNED;
     }
 
-    public void define(String name, Object value, boolean initialized) {
-        values.put(name, new Variable(value, initialized));
+    // Locals are defined in declaration order, which is the order the
+    // Resolver hands out slots in.
+    public void define(Object value) {
+        slots[count++] = value;
     }
 
+    // The common case is a single array load; the sentinels are only told
+    // apart once the fast check has failed.
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            Variable variable = values.get(name.lexeme);
-            if (variable.assignedTo) return variable.value;
-            throw new RuntimeError(name,
-                    "Unassigned variable '" + name.lexeme + "' accessed.");
+        if (values == null) return enclosing.get(name);
+
+        int symbol = name.symbol;
+        if (symbol < values.length) {
+            Object value = values[symbol];
+            if (value != UNDEFINED && value != UNASSIGNED) return value;
+            if (value == UNASSIGNED) {
+                throw new RuntimeError(name,
+                        "Unassigned variable '" + name.lexeme + "' accessed.");
+            }
         }
 
-        if (enclosing != null) return enclosing.get(name);
-
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'");
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            Variable variable = values.get(name.lexeme);
-            variable.value = value;
-            variable.assignedTo = true;
+        if (values == null) {
+            enclosing.assign(name, value);
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        int symbol = name.symbol;
+        if (symbol < values.length && values[symbol] != UNDEFINED) {
+            values[symbol] = value;
             return;
         }
 
@@ -68,12 +78,12 @@ class Environment {
                 "Undefined variable '" + name.lexeme + "'");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name).value;
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    Object assignAt(int distance, Token name, Object value) {
-       return ancestor(distance).values.put(name.lexeme, new Variable(value)).value;
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -87,6 +97,15 @@ class Environment {
 
     private void printTable() {
         System.out.println("env:");
-        values.forEach((key, value) -> System.out.println("  " + key + " " + value));
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == UNDEFINED) continue;
+                System.out.println("  " + Lox.context().symbols.name(i) + " " + values[i]);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                System.out.println("  " + i + " " + slots[i]);
+            }
+        }
     }
 }
@@ -18,9 +18,18 @@ abstract class Expr {
 
     abstract <R> R accept(Visitor<R> visitor);
 
+    // Counted, and timed in nanoseconds, by the CountingInterpreter.
+    long executions;
+    long nanos;
+
     static class Assign extends Expr {
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot;
+        int local = -1;
+        int upvalue = -1;
+        boolean cell;
 
         Assign(Token name, Expr value) {
             this.name = name;
@@ -34,9 +43,10 @@ abstract class Expr {
     }
 
     static class Binary extends Expr {
-        inal Expr left;
+        final Expr left;
         final Token operator;
         final Expr right;
+        boolean unboxed;
 
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -54,6 +64,9 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        Object target;
+        long hits;
+        long misses;
 
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
@@ -70,6 +83,11 @@ abstract class Expr {
     static class Lambda extends Expr {
         final List<Token> params;
         final List<Stmt> body;
+        int scopeSize;
+        int[] upvalues;
+        boolean[] capturedParams;
+        int hotness;
+        CompiledFunction compiled;
 
         Lambda(List<Token> params, List<Stmt> body) {
             this.params = params;
@@ -128,6 +146,7 @@ abstract class Expr {
     static class Unary extends Expr {
         final Token operator;
         final Expr right;
+        boolean unboxed;
 
         Unary(Token operator, Expr right) {
             this.operator = operator;
@@ -159,6 +178,11 @@ abstract class Expr {
 
     static class Variable extends Expr {
         final Token name;
+        int depth = -1;
+        int slot;
+        int local = -1;
+        int upvalue = -1;
+        boolean cell;
 
         Variable(Token name) {
             this.name = name;
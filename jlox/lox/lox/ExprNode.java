@@ -0,0 +1,522 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+abstract class ExprNode extends Node {
+    abstract Object execute(Environment environment);
+
+    static class Literal extends ExprNode {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static class LocalRead extends ExprNode {
+        final int depth;
+        final int slot;
+
+        LocalRead(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+    }
+
+    static class GlobalRead extends ExprNode {
+        final Environment globals;
+        final Token name;
+
+        GlobalRead(Environment globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return globals.get(name);
+        }
+    }
+
+    static class LocalWrite extends ExprNode {
+        final int depth;
+        final int slot;
+        ExprNode value;
+
+        LocalWrite(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = (ExprNode)newChild;
+        }
+    }
+
+    static class GlobalWrite extends ExprNode {
+        final Environment globals;
+        final Token name;
+        ExprNode value;
+
+        GlobalWrite(Environment globals, Token name, ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = (ExprNode)newChild;
+        }
+    }
+
+    // Operands are always evaluated here; subclasses only decide what to do
+    // with the values, so a failed guard can hand them to the generic node
+    // without running either side twice.
+    static abstract class Binary extends ExprNode {
+        final Token operator;
+        ExprNode left;
+        ExprNode right;
+
+        Binary(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        Binary(Binary node) {
+            this(node.operator, node.left, node.right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object leftValue = left.execute(environment);
+            Object rightValue = right.execute(environment);
+            return executeWith(leftValue, rightValue);
+        }
+
+        abstract Object executeWith(Object left, Object right);
+
+        Object deoptimize(Object left, Object right) {
+            return replace(new GenericBinary(this)).executeWith(left, right);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) {
+                left = (ExprNode)newChild;
+            } else {
+                right = (ExprNode)newChild;
+            }
+        }
+    }
+
+    static class UninitializedBinary extends Binary {
+        UninitializedBinary(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            return replace(specialize(left, right)).executeWith(left, right);
+        }
+
+        private Binary specialize(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                switch (operator.type) {
+                case GREATER:       return new GreaterDouble(this);
+                case GREATER_EQUAL: return new GreaterEqualDouble(this);
+                case LESS:          return new LessDouble(this);
+                case LESS_EQUAL:    return new LessEqualDouble(this);
+                case MINUS:         return new SubtractDouble(this);
+                case PLUS:          return new AddDouble(this);
+                case SLASH:         return new DivideDouble(this);
+                case STAR:          return new MultiplyDouble(this);
+                default:
+                }
+            }
+
+            if (operator.type == TokenType.PLUS &&
+                    left instanceof String && right instanceof String) {
+                return new AddString(this);
+            }
+
+            return new GenericBinary(this);
+        }
+    }
+
+    static class AddDouble extends Binary {
+        AddDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left + (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class SubtractDouble extends Binary {
+        SubtractDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left - (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class MultiplyDouble extends Binary {
+        MultiplyDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left * (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class DivideDouble extends Binary {
+        DivideDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left / (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class GreaterDouble extends Binary {
+        GreaterDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left > (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class GreaterEqualDouble extends Binary {
+        GreaterEqualDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left >= (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class LessDouble extends Binary {
+        LessDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left < (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class LessEqualDouble extends Binary {
+        LessEqualDouble(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double)left <= (double)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class AddString extends Binary {
+        AddString(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            if (left instanceof String && right instanceof String) {
+                return (String)left + (String)right;
+            }
+            return deoptimize(left, right);
+        }
+    }
+
+    static class GenericBinary extends Binary {
+        GenericBinary(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        GenericBinary(Binary node) { super(node); }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            switch (operator.type) {
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left >= (double)right;
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return (double)left <= (double)right;
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return (double)left - (double)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+
+                if (left instanceof String || right instanceof String) {
+                    return Interpreter.stringify(left) + Interpreter.stringify(right);
+                }
+
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return (double)left / (double)right;
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return (double)left * (double)right;
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case COMMA:
+                return right;
+            }
+
+            return null; // Unreachable.
+        }
+    }
+
+    static class Logical extends ExprNode {
+        final boolean isOr;
+        ExprNode left;
+        ExprNode right;
+
+        Logical(boolean isOr, ExprNode left, ExprNode right) {
+            this.isOr = isOr;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object leftValue = left.execute(environment);
+            if (Interpreter.isTruthy(leftValue) == isOr) return leftValue;
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (left == oldChild) {
+                left = (ExprNode)newChild;
+            } else {
+                right = (ExprNode)newChild;
+            }
+        }
+    }
+
+    static class Not extends ExprNode {
+        ExprNode right;
+
+        Not(ExprNode right) {
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return !Interpreter.isTruthy(right.execute(environment));
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            right = (ExprNode)newChild;
+        }
+    }
+
+    static class Negate extends ExprNode {
+        final Token operator;
+        ExprNode right;
+
+        Negate(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = right.execute(environment);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+            return -(double)value;
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            right = (ExprNode)newChild;
+        }
+    }
+
+    static class Ternary extends ExprNode {
+        ExprNode condition;
+        ExprNode left;
+        ExprNode right;
+
+        Ternary(ExprNode condition, ExprNode left, ExprNode right) {
+            this.condition = adopt(condition);
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (Interpreter.isTruthy(condition.execute(environment))) {
+                return left.execute(environment);
+            }
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExprNode)newChild;
+            } else if (left == oldChild) {
+                left = (ExprNode)newChild;
+            } else {
+                right = (ExprNode)newChild;
+            }
+        }
+    }
+
+    static class Call extends ExprNode {
+        final Token paren;
+        ExprNode callee;
+        final ExprNode[] arguments;
+
+        Call(Token paren, ExprNode callee, ExprNode[] arguments) {
+            this.paren = paren;
+            this.callee = adopt(callee);
+            this.arguments = arguments;
+            for (ExprNode argument : arguments) {
+                adopt(argument);
+            }
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (ExprNode argument : arguments) {
+                values.add(argument.execute(environment));
+            }
+
+            if (!(function instanceof LoxCallable)) {
+                throw new RuntimeError(paren,
+                        "Can only call functions and classes.");
+            }
+
+            LoxCallable callable = (LoxCallable)function;
+            if (values.size() != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " +
+                        callable.arity() + " arguments but got " +
+                        values.size() + ".");
+            }
+
+            // Neither NodeFunction nor the natives use the Interpreter.
+            try {
+                return callable.call(null, values);
+            } catch (StackOverflowError error) {
+                // Reported like the VM's frame limit. Whichever call has the
+                // stack left to build the error reports it.
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (callee == oldChild) {
+                callee = (ExprNode)newChild;
+                return;
+            }
+
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == oldChild) {
+                    arguments[i] = (ExprNode)newChild;
+                    return;
+                }
+            }
+        }
+    }
+
+    static class Lambda extends ExprNode {
+        final Token name;
+        final int arity;
+        final int scopeSize;
+        final StmtNode[] body;
+
+        Lambda(Token name, int arity, int scopeSize, StmtNode[] body) {
+            this.name = name;
+            this.arity = arity;
+            this.scopeSize = scopeSize;
+            this.body = body;
+            for (StmtNode statement : body) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return new NodeFunction(this, environment);
+        }
+    }
+
+    static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+}
@@ -0,0 +1,210 @@
+package lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+// Maps the counts the CountingInterpreter left on the tree back to source
+// lines. A node belongs to the line of its own token, or if it has none,
+// of the first token under it; literals, having neither, count towards no
+// line. A line shows the most any of its nodes ran, which for a loop body
+// is how many times the loop went round, and with timing on, the most time
+// any of them took including what it called.
+class Heatmap implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private long[] executions = new long[64];
+    private long[] nanos = new long[64];
+    private int lastLine = 0;
+
+    void add(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            visit(statement);
+        }
+    }
+
+    void add(Expr expr) {
+        visit(expr);
+    }
+
+    // Prints every line of the source with what ran on it; without the
+    // source, only the lines that ran.
+    void print(PrintStream err, List<String> source, boolean timed) {
+        err.printf("[heat] %5s %12s%s  %s%n", "line", "executions",
+                timed ? String.format(" %10s", "ms") : "", "source");
+
+        int lines = Math.max(source.size(), lastLine);
+        for (int line = 1; line <= lines; line++) {
+            long count = line < executions.length ? executions[line] : 0;
+            if (count == 0 && source.isEmpty()) continue;
+
+            String text = line <= source.size() ? source.get(line - 1) : "";
+            String time = "";
+            if (timed) {
+                time = String.format(" %10s", count == 0 ? "" :
+                        String.format("%.3f", nanos[line] / 1e6));
+            }
+            err.printf("[heat] %5d %12s%s  %s%n", line,
+                    count == 0 ? "" : Long.toString(count), time, text);
+        }
+    }
+
+    private int visit(Expr expr) {
+        return expr == null ? -1 : expr.accept(this);
+    }
+
+    private int visit(Stmt stmt) {
+        return stmt == null ? -1 : stmt.accept(this);
+    }
+
+    private int visit(List<Stmt> statements) {
+        int line = -1;
+        for (Stmt statement : statements) {
+            line = first(line, visit(statement));
+        }
+        return line;
+    }
+
+    private static int first(int line, int next) {
+        return line != -1 ? line : next;
+    }
+
+    // Records the node's counts against its line and hands the line back
+    // for a parent without a token of its own.
+    private int record(int line, long count, long time) {
+        if (line < 1) return -1;
+        if (line >= executions.length) {
+            int length = Math.max(executions.length * 2, line + 1);
+            executions = Arrays.copyOf(executions, length);
+            nanos = Arrays.copyOf(nanos, length);
+        }
+        executions[line] = Math.max(executions[line], count);
+        nanos[line] = Math.max(nanos[line], time);
+        lastLine = Math.max(lastLine, line);
+        return line;
+    }
+
+    private int record(int line, Expr expr) {
+        return record(line, expr.executions, expr.nanos);
+    }
+
+    private int record(int line, Stmt stmt) {
+        return record(line, stmt.executions, stmt.nanos);
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        visit(expr.value);
+        return record(expr.name.line, expr);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        visit(expr.left);
+        visit(expr.right);
+        return record(expr.operator.line, expr);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        int line = visit(expr.callee);
+        for (Expr argument : expr.arguments) {
+            visit(argument);
+        }
+        return record(first(line, expr.paren.line), expr);
+    }
+
+    @Override
+    public Integer visitLambdaExpr(Expr.Lambda expr) {
+        int line = expr.params.isEmpty() ? -1 : expr.params.get(0).line;
+        return record(first(line, visit(expr.body)), expr);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return record(visit(expr.expression), expr);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        return -1;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        visit(expr.left);
+        visit(expr.right);
+        return record(expr.operator.line, expr);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        visit(expr.right);
+        return record(expr.operator.line, expr);
+    }
+
+    @Override
+    public Integer visitTernaryExpr(Expr.Ternary expr) {
+        int line = visit(expr.expression);
+        line = first(line, visit(expr.left));
+        line = first(line, visit(expr.right));
+        return record(line, expr);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return record(expr.name.line, expr);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        return record(visit(stmt.statements), stmt);
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        return record(visit(stmt.expression), stmt);
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+        visit(stmt.lambda);
+        return record(stmt.name.line, stmt);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        visit(stmt.initializer);
+        return record(stmt.name.line, stmt);
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        int line = visit(stmt.condition);
+        line = first(line, visit(stmt.body));
+        line = first(line, visit(stmt.increment));
+        return record(line, stmt);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int line = visit(stmt.condition);
+        line = first(line, visit(stmt.thenBranch));
+        line = first(line, visit(stmt.elseBranch));
+        return record(line, stmt);
+    }
+
+    @Override
+    public Integer visitLoopControlStmt(Stmt.LoopControl stmt) {
+        return record(stmt.keyword.line, stmt);
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        visit(stmt.value);
+        return record(stmt.keyword.line, stmt);
+    }
+
+    @Override
+    public Integer visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        return record(visit(stmt.expression), stmt);
+    }
+}
@@ -1,45 +1,68 @@
 package lox;
 
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     private static AstPrinter astPrinter = new AstPrinter();
+    private static final int BOX_CACHE_LOW = -128;
+    private static final int BOX_CACHE_HIGH = 1023;
+    private static final Double[] boxCache =
+            new Double[BOX_CACHE_HIGH - BOX_CACHE_LOW + 1];
+    static {
+        for (int i = 0; i < boxCache.length; i++) {
+            boxCache[i] = (double)(i + BOX_CACHE_LOW);
+        }
+    }
+
     final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Every call's locals sit in one array, starting at base. Top-level
+    // blocks use the frame at 0. top is the first slot no frame is using,
+    // which is where the next call's arguments get pushed.
+    private Object[] stack = new Object[256];
+    private int base = 0;
+    private int top = 0;
+    private Cell[] upvalues = new Cell[0];
+    // Set by a return statement for the call it completes to collect.
+    private Object returnValue = null;
+    // Set instead by a return of a call in tail position: the function to
+    // run next in the same frame, with its arguments pushed at tailArgs.
+    private LoxFunction tailCall = null;
+    private int tailArgs;
+    // What call() gets back from a body that ended in a tail call.
+    private static final Object TAIL_CALL = new Object();
+    // Call sites in the order they were first run, kept for the report.
+    private final List<Expr.Call> callSites = new ArrayList<>();
+    boolean reportCalls = false;
+    // Compile functions to JVM classes once their calls and loop
+    // iterations add up to Jit.THRESHOLD.
+    boolean jit = false;
+    boolean reportJit = false;
+    // The function whose body is running, if any, for loops to warm.
+    private Expr.Lambda running = null;
+    // Told of every call and return under --profile.
+    Profiler profiler = null;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
-
-            @Override
-            public String toString() { return "<native fun>"; }
-        });
+        defineNatives(globals);
+    }
 
-        globals.define("print", new LoxCallable() {
-            @Override
-            public int arity() { return 1; }
+    static void defineNatives(Environment globals) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        globals.define(Symbols.CLOCK, NativeFunction.of(lookup, "clock", 0), true);
+        globals.define(Symbols.PRINT, NativeFunction.of(lookup, "print", 1), true);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                System.out.println(stringify(arguments.get(0)));
-                return null;
-            }
+    private static Object clock() {
+        return (double)System.currentTimeMillis() / 1000.0;
+    }
 
-            @Override
-            public String toString() { return "<native fun>"; }
-        });
+    private static Object print(Object value) {
+        Lox.context().out.println(stringify(value));
+        return null;
     }
 
     void interpret(List<Stmt> statements) {
@@ -54,7 +77,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     void interpret(Expr expr) {
         try {
-            System.out.println(stringify(evaluate(expr)));
+            Lox.context().out.println(stringify(evaluate(expr)));
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
@@ -64,9 +87,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.local != -1) {
+            if (expr.cell) {
+                ((Cell)stack[base + expr.local]).value = value;
+            } else {
+                stack[base + expr.local] = value;
+            }
+        } else if (expr.upvalue != -1) {
+            upvalues[expr.upvalue].value = value;
         } else {
             globals.assign(expr.name, value);
         }
@@ -76,39 +104,53 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        if (expr.unboxed) {
+            switch (expr.operator.type) {
+            case GREATER:       return evaluateDouble(expr.left) > evaluateDouble(expr.right);
+            case GREATER_EQUAL: return evaluateDouble(expr.left) >= evaluateDouble(expr.right);
+            case LESS:          return evaluateDouble(expr.left) < evaluateDouble(expr.right);
+            case LESS_EQUAL:    return evaluateDouble(expr.left) <= evaluateDouble(expr.right);
+            default:            return box(evaluateDouble(expr));
+            }
+        }
 
-        switch (expr.operator.type) {
+        return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+    }
+
+    // Also called by compiled code, for operators it couldn't unbox.
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
         case GREATER:
-            checkNumberOperands(expr.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double)left > (double)right;
         case GREATER_EQUAL:
-            checkNumberOperands(expr.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double)left >= (double)right;
         case LESS:
-            checkNumberOperands(expr.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double)left < (double)right;
         case LESS_EQUAL:
-            checkNumberOperands(expr.operator, left, right);
+            checkNumberOperands(operator, left, right);
             return (double)left <= (double)right;
         case MINUS:
-            checkNumberOperands(expr.operator, left, right);
-            return (double)left - (double)right;
+            checkNumberOperands(operator, left, right);
+            return box((double)left - (double)right);
         case PLUS:
             if (left instanceof Double && right instanceof Double) {
-                return (double)left + (double)right;
+                return box((double)left + (double)right);
             }
 
             if (left instanceof String || right instanceof String) {
                 return stringify(left) + stringify(right);
             }
 
-            throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
         case SLASH:
-            return (double)left / (double)right;
+            checkNumberOperands(operator, left, right);
+            return box((double)left / (double)right);
         case STAR:
-            return (double)left * (double)right;
+            checkNumberOperands(operator, left, right);
+            return box((double)left * (double)right);
         case BANG_EQUAL: return !isEqual(left, right);
         case EQUAL_EQUAL: return isEqual(left, right);
         case COMMA:
@@ -120,13 +162,49 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return invoke(expr, evaluate(expr.callee));
+    }
+
+    private Object invoke(Expr.Call expr, Object callee) {
+        // Each site caches the last target whose arity it checked. For
+        // functions that's the declaration, so every closure made from the
+        // same lambda hits. Arguments are pushed straight into the callee's
+        // frame, skipping the list.
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            if (hit(expr, function.declaration) ||
+                    cache(expr, function.declaration, function.arity())) {
+                int argBase = top;
+                for (int i = 0; i < expr.arguments.size(); i++) {
+                    push(evaluate(expr.arguments.get(i)));
+                }
+                return call(function, argBase);
+            }
+        } else if (callee instanceof NativeFunction && (hit(expr, callee) ||
+                cache(expr, callee, ((NativeFunction)callee).arity()))) {
+            Object[] arguments = new Object[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = evaluate(expr.arguments.get(i));
+            }
+            return ((NativeFunction)callee).call(arguments);
+        } else if (callee instanceof LoxCallable && (hit(expr, callee) ||
+                cache(expr, callee, ((LoxCallable)callee).arity()))) {
+            List<Object> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+            return ((LoxCallable)callee).call(this, arguments);
+        }
 
+        // Only calls that are about to fail get here.
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return callChecked(expr, callee, arguments);
+    }
 
+    private Object callChecked(Expr.Call expr, Object callee, List<Object> arguments) {
         if (!(callee instanceof LoxCallable)) {
             // System.out.println("type: " + callee.getClass());
             throw new RuntimeError(expr.paren,
@@ -143,8 +221,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return function.call(this, arguments);
     }
 
+    private boolean hit(Expr.Call expr, Object target) {
+        if (target != expr.target) return false;
+        expr.hits++;
+        return true;
+    }
+
+    // Remembers the target if the call can go ahead, so later calls to it
+    // skip the checks.
+    private boolean cache(Expr.Call expr, Object target, int arity) {
+        if (reportCalls && expr.hits == 0 && expr.misses == 0) callSites.add(expr);
+        expr.misses++;
+        if (arity != expr.arguments.size()) return false;
+        expr.target = target;
+        return true;
+    }
+
+    void printCallReport() {
+        PrintStream err = Lox.context().err;
+        for (Expr.Call site : callSites) {
+            String callee = site.callee instanceof Expr.Variable
+                    ? ((Expr.Variable)site.callee).name.lexeme : "<expr>";
+            long calls = site.hits + site.misses;
+            err.printf("[calls] line %d %s: %d of %d calls hit (%.1f%%)%n",
+                    site.paren.line, callee, site.hits, calls, 100.0 * site.hits / calls);
+        }
+    }
+
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LoxFunction(expr, environment);
+        return new LoxFunction(expr, capture(expr));
     }
 
     @Override
@@ -172,19 +277,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.unboxed) return box(-evaluateDouble(expr.right));
+
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
         case BANG:
             return !isTruthy(right);
         case MINUS:
-            checkNumberOperand(expr.operator, right);
-            return -(double)right;
+            return negate(expr.operator, right);
         }
 
         return null; // Unreachable.
     }
 
+    static Object negate(Token operator, Object right) {
+        checkNumberOperand(operator, right);
+        return box(-(double)right);
+    }
+
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
         Object expression = evaluate(expr.expression);
@@ -198,76 +309,126 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.local != -1) {
+            Object value = stack[base + expr.local];
+            return expr.cell ? ((Cell)value).value : value;
+        }
+        if (expr.upvalue != -1) return upvalues[expr.upvalue].value;
+        return globals.get(expr.name);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        // Its locals already have slots in the enclosing frame.
+        for (Stmt statement : stmt.statements) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt.lambda, environment, stmt.name);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.local == -1) {
+            globals.define(stmt.name.symbol,
+                    new LoxFunction(stmt.lambda, capture(stmt.lambda), stmt.name), true);
+        } else if (stmt.cell) {
+            // The cell has to exist before a recursive function captures it.
+            Cell cell = new Cell(null);
+            setLocal(stmt.local, cell);
+            cell.value = new LoxFunction(stmt.lambda, capture(stmt.lambda), stmt.name);
+        } else {
+            setLocal(stmt.local,
+                    new LoxFunction(stmt.lambda, capture(stmt.lambda), stmt.name));
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.cell) {
+            Cell cell = new Cell(null);
+            setLocal(stmt.local, cell);
+            if (stmt.initializer != null) cell.value = evaluate(stmt.initializer);
+            return Completion.NORMAL;
+        }
+
+        // A slot reused from an earlier scope must not leak into an
+        // initializer that reads the variable it declares.
+        if (stmt.local != -1) setLocal(stmt.local, null);
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value, stmt.initializer != null);
-        return null;
+
+        if (stmt.local == -1) {
+            globals.define(stmt.name.symbol, value, stmt.initializer != null);
+        } else {
+            setLocal(stmt.local, value);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        int iterations = 0;
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch (LoopControl controlStmt) {
-                if (controlStmt.keyword.type == TokenType.BREAK) {
-                    break;
-                } else if (controlStmt.keyword.type == TokenType.CONTINUE) {
-                    continue;
-                } else {
-                    throw new RuntimeError(controlStmt.keyword, "Invalid loop control statement.");
-                }
+            iterations++;
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) {
+                warm(iterations);
+                return completion;
             }
+            if (stmt.increment != null) evaluate(stmt.increment);
+        }
+        warm(iterations);
+        return Completion.NORMAL;
+    }
+
+    // A function that loops a lot is worth compiling before it has been
+    // called many times; the next call runs compiled.
+    private void warm(int iterations) {
+        if (jit && running != null && running.hotness >= 0) {
+            running.hotness = (int)Math.min(Jit.THRESHOLD,
+                    (long)running.hotness + iterations);
         }
-        return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
-        throw new LoopControl(stmt.keyword);
+    public Completion visitLoopControlStmt(Stmt.LoopControl stmt) {
+        switch (stmt.keyword.type) {
+        case BREAK:    return Completion.BREAK;
+        case CONTINUE: return Completion.CONTINUE;
+        default:
+            throw new RuntimeError(stmt.keyword, "Invalid loop control statement.");
+        }
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) return tailCall((Expr.Call)stmt.value);
+
+        returnValue = null;
+        if (stmt.value != null) returnValue = evaluate(stmt.value);
+        return Completion.RETURN;
     }
 
     // @Override
@@ -278,71 +439,309 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // }
 
     @Override
-    public Void visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+    public Completion visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
         Object value = evaluate(stmt.expression);
         String astOutput = astPrinter.print(stmt.expression);
         // System.out.println(astOutput);
-        System.out.println(astOutput + " → " + stringify(value));
-        return null;
+        Lox.context().out.println(astOutput + " → " + stringify(value));
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
-        Environment previous = this.environment;
+    // Leaves a call to a Lox function for the enclosing call to run in
+    // place of its own body. Anything else is called as usual.
+    private Completion tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            if (hit(expr, function.declaration) ||
+                    cache(expr, function.declaration, function.arity())) {
+                int argBase = top;
+                for (int i = 0; i < expr.arguments.size(); i++) {
+                    push(evaluate(expr.arguments.get(i)));
+                }
+                tailCall = function;
+                tailArgs = argBase;
+                return Completion.RETURN;
+            }
+        }
+
+        returnValue = invoke(expr, callee);
+        return Completion.RETURN;
+    }
+
+    Object call(LoxFunction function, List<Object> arguments) {
+        int argBase = top;
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        return call(function, argBase);
+    }
+
+    // Runs a call whose arguments were pushed starting at argBase. Tail
+    // calls made by the body are run here too, one after another in the
+    // same frame, so tail recursion doesn't grow the Java stack.
+    private Object call(LoxFunction function, int argBase) {
+        int previousBase = base;
+        Cell[] previousUpvalues = upvalues;
+        Expr.Lambda previousRunning = running;
+        base = argBase;
+        if (profiler != null) profiler.enter(function);
+
         try {
-            this.environment = environment;
+            Object value = run(function);
+            return value == TAIL_CALL ? runTailCalls() : value;
+        } finally {
+            if (profiler != null) profiler.exit();
+            base = previousBase;
+            upvalues = previousUpvalues;
+            running = previousRunning;
+            top = argBase;
+        }
+    }
 
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+    // The same, for a call site that already knows the callee's compiled
+    // body.
+    Object callCompiled(CompiledFunction compiled, LoxFunction function, int argBase) {
+        int previousBase = base;
+        Cell[] previousUpvalues = upvalues;
+        Expr.Lambda previousRunning = running;
+        base = argBase;
+        upvalues = function.upvalues;
+        running = function.declaration;
+        if (profiler != null) profiler.enter(function);
+
+        try {
+            Object value = compiled.call(this, stack, base, upvalues);
+            return value == TAIL_CALL ? runTailCalls() : value;
         } finally {
-            this.environment = previous;
+            if (profiler != null) profiler.exit();
+            base = previousBase;
+            upvalues = previousUpvalues;
+            running = previousRunning;
+            top = argBase;
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Object runTailCalls() {
+        while (true) {
+            // Closures hold the old frame's captured locals in their own
+            // cells, so the slots are free to reuse.
+            LoxFunction function = tailCall;
+            tailCall = null;
+            if (profiler != null) profiler.replace(function);
+            int arity = function.arity();
+            System.arraycopy(stack, tailArgs, stack, base, arity);
+            top = base + arity;
+
+            Object value = run(function);
+            if (value != TAIL_CALL) return value;
+        }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    // Runs the function's body in the frame at base, compiled once it has
+    // been called often enough.
+    private Object run(LoxFunction function) {
+        Expr.Lambda declaration = function.declaration;
+        upvalues = function.upvalues;
+        running = declaration;
+
+        // A function is only tried once; hotness stays negative after.
+        if (jit && declaration.hotness >= 0 && ++declaration.hotness >= Jit.THRESHOLD) {
+            declaration.compiled = Jit.compile(function, reportJit);
+            declaration.hotness = -1;
+        }
+        if (declaration.compiled != null) {
+            return declaration.compiled.call(this, stack, base, upvalues);
+        }
+
+        for (int i = 0; i < declaration.capturedParams.length; i++) {
+            if (declaration.capturedParams[i]) {
+                stack[base + i] = new Cell(stack[base + i]);
+            }
+        }
+
+        for (Stmt statement : declaration.body) {
+            if (execute(statement) != Completion.RETURN) continue;
+            if (tailCall != null) return TAIL_CALL;
+
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        }
+        return null;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // The entry points below are for compiled code, which pushes a call's
+    // arguments itself before handing over the callee.
+
+    int argBase() {
+        return top;
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    Object invokeAt(Expr.Call expr, Object callee, int argBase) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            if (hit(expr, function.declaration) ||
+                    cache(expr, function.declaration, function.arity())) {
+                return call(function, argBase);
+            }
+        }
+
+        List<Object> arguments = new ArrayList<>(top - argBase);
+        for (int i = argBase; i < top; i++) {
+            arguments.add(stack[i]);
+        }
+        top = argBase;
+
+        if (callee instanceof LoxCallable && (hit(expr, callee) ||
+                cache(expr, callee, ((LoxCallable)callee).arity()))) {
+            return ((LoxCallable)callee).call(this, arguments);
+        }
+        return callChecked(expr, callee, arguments);
+    }
+
+    // For LoxCallSite, which has the arguments in hand.
+    Object invokeWith(Expr.Call expr, Object callee, Object[] arguments) {
+        if (callee instanceof NativeFunction && (hit(expr, callee) ||
+                cache(expr, callee, ((NativeFunction)callee).arity()))) {
+            return ((NativeFunction)callee).call(arguments);
+        }
+
+        int argBase = top;
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        return invokeAt(expr, callee, argBase);
+    }
+
+    // Runs the compiled body when there is one.
+    Object callWith(CompiledFunction compiled, LoxFunction function, Object[] arguments) {
+        int argBase = top;
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        return callAt(compiled, function, argBase);
+    }
+
+    Object callAt(CompiledFunction compiled, LoxFunction function, int argBase) {
+        if (compiled != null) return callCompiled(compiled, function, argBase);
+        return call(function, argBase);
+    }
+
+    Object tailCallAt(Expr.Call expr, Object callee, int argBase) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            if (hit(expr, function.declaration) ||
+                    cache(expr, function.declaration, function.arity())) {
+                tailCall = function;
+                tailArgs = argBase;
+                return TAIL_CALL;
+            }
+        }
+        return invokeAt(expr, callee, argBase);
+    }
+
+    void push(Object value) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+        stack[top++] = value;
+    }
+
+    // Gathers the cells a new closure captures from the running function.
+    private Cell[] capture(Expr.Lambda lambda) {
+        Cell[] captured = new Cell[lambda.upvalues.length];
+        for (int i = 0; i < captured.length; i++) {
+            int index = lambda.upvalues[i];
+            if (index >= 0) {
+                captured[i] = (Cell)stack[base + index];
+            } else {
+                captured[i] = upvalues[-1 - index];
+            }
+        }
+        return captured;
+    }
+
+    private void setLocal(int local, Object value) {
+        int slot = base + local;
+        if (slot >= stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, slot + 1));
         }
+        stack[slot] = value;
+        if (slot >= top) top = slot + 1;
+    }
+
+    // evaluate(), evaluateDouble() and execute() are where every node is
+    // run, so the CountingInterpreter overrides them to count. Until it is
+    // loaded HotSpot sees no override and calls them directly.
+    Object evaluate(Expr expr) {
+        return expr.accept(this);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    // Only reached through nodes the Resolver marked unboxed, so expr is
+    // known to produce a number and intermediate results stay unboxed.
+    double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.unboxed) {
+                double left = evaluateDouble(binary.left);
+                double right = evaluateDouble(binary.right);
+
+                switch (binary.operator.type) {
+                case MINUS: return left - right;
+                case PLUS:  return left + right;
+                case SLASH: return left / right;
+                case STAR:  return left * right;
+                default:
+                }
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.unboxed) return -evaluateDouble(unary.right);
+        } else if (expr instanceof Expr.Literal) {
+            return (double)((Expr.Literal)expr).value;
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping)expr).expression);
+        }
+
+        return (double)evaluate(expr);
+    }
+
+    Completion execute(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    // Hands back a shared Double for small integral results, which is what
+    // loop counters and most arithmetic in scripts produce.
+    static Double box(double value) {
+        int index = (int)value;
+        if (index == value && index >= BOX_CACHE_LOW && index <= BOX_CACHE_HIGH &&
+                (index != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return boxCache[index - BOX_CACHE_LOW];
+        }
+        return value;
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null) return b == null;
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -0,0 +1,578 @@
+package lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import static lox.ClassFile.*;
+
+// Turns the body of a function the Interpreter has called often enough into
+// a hidden JVM class, so HotSpot compiles the Lox code itself rather than
+// the visitor walking it. Values stay boxed the way the Interpreter keeps
+// them, except arithmetic the TypeInferrer marked unboxed, which runs on
+// JVM doubles. Functions that declare closures, capture their own locals
+// or print trees are left to the Interpreter.
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String INTERPRETER = "lox/Interpreter";
+    private static final String ENVIRONMENT = "lox/Environment";
+    private static final String CELL = "lox/Cell";
+    private static final String TOKEN = "lox/Token";
+    private static final String CALL = "lox/Expr$Call";
+    private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String COMPILED = "lox/Jit$Compiled";
+
+    // The JVM locals of the compiled call method, in parameter order. The
+    // function's own locals follow them.
+    private static final int THIS = 0;
+    private static final int INTERPRETER_ARG = 1;
+    private static final int STACK = 2;
+    private static final int BASE = 3;
+    private static final int UPVALUES = 4;
+    private static final int FIRST_LOCAL = 5;
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    private static class Loop {
+        final Label next = new Label();
+        final Label exit = new Label();
+    }
+
+    private final ClassFile file = new ClassFile();
+    private final ClassFile.Code code = file.new Code(FIRST_LOCAL);
+    // Handed to the class as its class data and kept in static final
+    // fields, which HotSpot trusts to be constant.
+    private final List<Object> constants = new ArrayList<>();
+    private final List<String> constantTypes = new ArrayList<>();
+    private final Stack<Loop> loops = new Stack<>();
+
+    private Jit() {}
+
+    // Returns null when the function can't be compiled; the reason goes to
+    // the report if one was asked for.
+    static CompiledFunction compile(LoxFunction function, boolean report) {
+        Expr.Lambda declaration = function.declaration;
+        try {
+            CompiledFunction compiled = new Jit().define(declaration);
+            if (report) {
+                Lox.context().err.println("[jit] compiled " + function);
+            }
+            return compiled;
+        } catch (Unsupported | LimitExceeded error) {
+            if (report) {
+                Lox.context().err.println("[jit] left " + function +
+                        " interpreted: " + error.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private CompiledFunction define(Expr.Lambda declaration) {
+        for (int i = 0; i < declaration.params.size(); i++) {
+            if (declaration.capturedParams[i]) {
+                throw new Unsupported("a closure captures a parameter");
+            }
+            code.load(STACK);
+            code.loadInt(BASE);
+            code.integer(i);
+            code.op(IADD, -1);
+            code.op(AALOAD, -1);
+            code.store(FIRST_LOCAL + i);
+        }
+
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        for (int i = 0; i < constants.size(); i++) {
+            file.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "c" + i,
+                    "L" + constantTypes.get(i) + ";");
+        }
+        file.method(ACC_STATIC, "<clinit>", "()V", initializer());
+        file.method(ACC_PUBLIC, "<init>", "()V", constructor());
+        file.method(ACC_PUBLIC, "call",
+                "(L" + INTERPRETER + ";[L" + OBJECT + ";I[L" + CELL + ";)L" + OBJECT + ";",
+                code);
+        byte[] bytes = file.toBytes(COMPILED, OBJECT, "lox/CompiledFunction");
+
+        try {
+            Class<?> compiled = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, constants.toArray(), true)
+                    .lookupClass();
+            return (CompiledFunction)compiled.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError error) {
+            throw new Unsupported("the JVM rejected the class: " + error);
+        }
+    }
+
+    // Copies the class data into the constant fields.
+    private ClassFile.Code initializer() {
+        ClassFile.Code clinit = file.new Code(1);
+        clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+                "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.constant("_");
+        clinit.classConstant("[L" + OBJECT + ";");
+        clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;" +
+                "Ljava/lang/Class;)L" + OBJECT + ";");
+        clinit.checkcast("[L" + OBJECT + ";");
+        clinit.store(0);
+
+        for (int i = 0; i < constants.size(); i++) {
+            clinit.load(0);
+            clinit.integer(i);
+            clinit.op(AALOAD, -1);
+            clinit.checkcast(constantTypes.get(i));
+            clinit.field(PUTSTATIC, COMPILED, "c" + i, "L" + constantTypes.get(i) + ";");
+        }
+        clinit.op(RETURN, 0);
+        return clinit;
+    }
+
+    private ClassFile.Code constructor() {
+        ClassFile.Code init = file.new Code(1);
+        init.load(THIS);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN, 0);
+        return init;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.local != -1) {
+            if (expr.cell) throw new Unsupported("a closure captures a local");
+            compile(expr.value);
+            code.op(DUP, 1);
+            code.store(FIRST_LOCAL + expr.local);
+        } else if (expr.upvalue != -1) {
+            upvalue(expr.upvalue);
+            compile(expr.value);
+            code.op(DUP_X1, 1);
+            code.field(PUTFIELD, CELL, "value", "L" + OBJECT + ";");
+        } else {
+            globals();
+            constant(expr.name, TOKEN);
+            compile(expr.value);
+            code.op(DUP_X2, 1);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assign",
+                    "(L" + TOKEN + ";L" + OBJECT + ";)V");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.unboxed) {
+            if (isComparison(expr.operator.type)) {
+                Label isFalse = new Label();
+                compare(expr, isFalse);
+                bool(isFalse);
+            } else {
+                compileDouble(expr);
+                box();
+            }
+            return null;
+        }
+
+        if (expr.operator.type == TokenType.COMMA) {
+            compile(expr.left);
+            code.op(POP, -1);
+            compile(expr.right);
+            return null;
+        }
+
+        constant(expr.operator, TOKEN);
+        compile(expr.left);
+        compile(expr.right);
+        code.invoke(INVOKESTATIC, INTERPRETER, "binary",
+                "(L" + TOKEN + ";L" + OBJECT + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return null;
+    }
+
+    // Each call site gets a LoxCallSite, which links it to the callee it
+    // keeps seeing.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int count = expr.arguments.size();
+        if (count > 250) throw new Unsupported("a call has too many arguments");
+
+        constant(new LoxCallSite(expr).dynamicInvoker(), METHOD_HANDLE);
+        compile(expr.callee);
+        code.load(INTERPRETER_ARG);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        code.invoke(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+                LoxCallSite.type(count).toMethodDescriptorString());
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported("it creates a closure");
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            code.field(GETSTATIC, BOOLEAN, (boolean)expr.value ? "TRUE" : "FALSE",
+                    "L" + BOOLEAN + ";");
+        } else if (expr.value instanceof Double) {
+            code.constant((double)expr.value);
+            box();
+        } else {
+            code.constant((String)expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+        compile(expr.left);
+        code.op(DUP, 1);
+        truthy();
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.unboxed) {
+            compileDouble(expr.right);
+            code.op(DNEG, 0);
+            box();
+            return null;
+        }
+
+        if (expr.operator.type == TokenType.BANG) {
+            compile(expr.right);
+            truthy();
+            code.op(ICONST_1, 1);
+            code.op(IXOR, -1);
+            code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)L" + BOOLEAN + ";");
+            return null;
+        }
+
+        constant(expr.operator, TOKEN);
+        compile(expr.right);
+        code.invoke(INVOKESTATIC, INTERPRETER, "negate",
+                "(L" + TOKEN + ";L" + OBJECT + ";)L" + OBJECT + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        condition(expr.expression, otherwise);
+        compile(expr.left);
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.local != -1) {
+            if (expr.cell) throw new Unsupported("a closure captures a local");
+            code.load(FIRST_LOCAL + expr.local);
+        } else if (expr.upvalue != -1) {
+            upvalue(expr.upvalue);
+            code.field(GETFIELD, CELL, "value", "L" + OBJECT + ";");
+        } else {
+            globals();
+            constant(expr.name, TOKEN);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get",
+                    "(L" + TOKEN + ";)L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("it declares a function");
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.local == -1) throw new Unsupported("it declares a global");
+        if (stmt.cell) throw new Unsupported("a closure captures a local");
+
+        // Cleared first, like the Interpreter does, in case the initializer
+        // reads the variable it declares.
+        code.op(ACONST_NULL, 1);
+        code.store(FIRST_LOCAL + stmt.local);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+            code.store(FIRST_LOCAL + stmt.local);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop();
+        Label start = new Label();
+        code.mark(start);
+        condition(stmt.condition, loop.exit);
+
+        loops.push(loop);
+        compile(stmt.body);
+        loops.pop();
+
+        code.mark(loop.next);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            code.op(POP, -1);
+        }
+        code.jump(GOTO, start);
+        code.mark(loop.exit);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = new Label();
+        condition(stmt.condition, otherwise);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            code.mark(otherwise);
+            return null;
+        }
+
+        Label end = new Label();
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        compile(stmt.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
+        if (loops.isEmpty()) throw new Unsupported("it breaks outside a loop");
+        switch (stmt.keyword.type) {
+        case BREAK:    code.jump(GOTO, loops.peek().exit); break;
+        case CONTINUE: code.jump(GOTO, loops.peek().next); break;
+        default:
+            throw new Unsupported("it has an invalid loop control statement");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) {
+            tailCall((Expr.Call)stmt.value);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        throw new Unsupported("it prints a tree");
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Mirrors Interpreter.evaluateDouble, leaving a JVM double.
+    private void compileDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.unboxed && !isComparison(binary.operator.type) &&
+                    binary.operator.type != TokenType.BANG_EQUAL &&
+                    binary.operator.type != TokenType.EQUAL_EQUAL) {
+                compileDouble(binary.left);
+                compileDouble(binary.right);
+                switch (binary.operator.type) {
+                case MINUS: code.op(DSUB, -2); return;
+                case PLUS:  code.op(DADD, -2); return;
+                case SLASH: code.op(DDIV, -2); return;
+                case STAR:  code.op(DMUL, -2); return;
+                default:
+                    throw new Unsupported("unexpected unboxed operator");
+                }
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.unboxed) {
+                compileDouble(unary.right);
+                code.op(DNEG, 0);
+                return;
+            }
+        } else if (expr instanceof Expr.Literal) {
+            code.constant((double)((Expr.Literal)expr).value);
+            return;
+        } else if (expr instanceof Expr.Grouping) {
+            compileDouble(((Expr.Grouping)expr).expression);
+            return;
+        }
+
+        compile(expr);
+        code.checkcast(DOUBLE);
+        code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    // Jumps to isFalse unless expr is truthy, comparing unboxed numbers
+    // directly when it can.
+    private void condition(Expr expr, Label isFalse) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping)expr).expression;
+        }
+
+        if (expr instanceof Expr.Binary && ((Expr.Binary)expr).unboxed &&
+                isComparison(((Expr.Binary)expr).operator.type)) {
+            compare((Expr.Binary)expr, isFalse);
+            return;
+        }
+
+        compile(expr);
+        truthy();
+        code.jump(IFEQ, isFalse);
+    }
+
+    // NaN compares false either way round, as it does in Java.
+    private void compare(Expr.Binary expr, Label isFalse) {
+        compileDouble(expr.left);
+        compileDouble(expr.right);
+        switch (expr.operator.type) {
+        case GREATER:
+            code.op(DCMPL, -3);
+            code.jump(IFLE, isFalse);
+            break;
+        case GREATER_EQUAL:
+            code.op(DCMPL, -3);
+            code.jump(IFLT, isFalse);
+            break;
+        case LESS:
+            code.op(DCMPG, -3);
+            code.jump(IFGE, isFalse);
+            break;
+        default:
+            code.op(DCMPG, -3);
+            code.jump(IFGT, isFalse);
+        }
+    }
+
+    // Turns a jump taken when false into a Boolean on the stack.
+    private void bool(Label isFalse) {
+        Label end = new Label();
+        code.field(GETSTATIC, BOOLEAN, "TRUE", "L" + BOOLEAN + ";");
+        code.jump(GOTO, end);
+        code.mark(isFalse);
+        code.field(GETSTATIC, BOOLEAN, "FALSE", "L" + BOOLEAN + ";");
+        code.mark(end);
+    }
+
+    // Arguments go onto the Interpreter's stack, and the Interpreter runs
+    // the callee in this function's frame once the compiled code has
+    // returned.
+    private void tailCall(Expr.Call expr) {
+        code.load(INTERPRETER_ARG);
+        constant(expr, CALL);
+        compile(expr.callee);
+        code.load(INTERPRETER_ARG);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "argBase", "()I");
+        for (Expr argument : expr.arguments) {
+            code.load(INTERPRETER_ARG);
+            compile(argument);
+            code.invoke(INVOKEVIRTUAL, INTERPRETER, "push", "(L" + OBJECT + ";)V");
+        }
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "tailCallAt",
+                "(L" + CALL + ";L" + OBJECT + ";I)L" + OBJECT + ";");
+    }
+
+    private void constant(Object value, String type) {
+        int index = -1;
+        for (int i = 0; i < constants.size(); i++) {
+            if (constants.get(i) == value) index = i;
+        }
+        if (index == -1) {
+            index = constants.size();
+            constants.add(value);
+            constantTypes.add(type);
+        }
+
+        code.field(GETSTATIC, COMPILED, "c" + index, "L" + type + ";");
+    }
+
+    private void globals() {
+        code.load(INTERPRETER_ARG);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+    }
+
+    private void upvalue(int index) {
+        code.load(UPVALUES);
+        code.integer(index);
+        code.op(AALOAD, -1);
+    }
+
+    private void truthy() {
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, INTERPRETER, "box", "(D)L" + DOUBLE + ";");
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch (type) {
+        case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -1,36 +1,249 @@
 package lox;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-    static boolean printReport = true;
+    private enum Engine {
+        TREE, VM, NODES, CLOSURES
+    }
+
+    // Set once from the command line and shared by every run.
+    private static Engine engine = Engine.TREE;
+    private static boolean reportTypes = false;
+    private static boolean reportOptimizer = false;
+    private static boolean disassemble = false;
+    private static boolean reportCache = false;
+    private static boolean reportCalls = false;
+    private static boolean jit = false;
+    private static boolean reportJit = false;
+    private static boolean stream = false;
+    private static boolean profile = false;
+    // Where --profile writes its samples; stderr if not given.
+    private static Path profilePath = null;
+    private static boolean heatmap = false;
+    private static boolean heatmapTimed = false;
+    private static AstCache cache = null;
+    private static final ThreadLocal<RunContext> context =
+            ThreadLocal.withInitial(() -> newContext(System.out, System.err));
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+        boolean serve = false;
+        boolean batch = false;
+        int port = LoxServer.DEFAULT_PORT;
+
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                engine = Engine.VM;
+            } else if (arg.equals("--nodes")) {
+                engine = Engine.NODES;
+            } else if (arg.equals("--closures")) {
+                engine = Engine.CLOSURES;
+            } else if (arg.equals("--optimize-report")) {
+                reportOptimizer = true;
+            } else if (arg.equals("--types")) {
+                reportTypes = true;
+            } else if (arg.equals("--disassemble")) {
+                disassemble = true;
+            } else if (arg.startsWith("--ast-cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--ast-cache=".length())));
+            } else if (arg.equals("--jit")) {
+                jit = true;
+            } else if (arg.equals("--jit-report")) {
+                reportJit = true;
+            } else if (arg.equals("--call-report")) {
+                reportCalls = true;
+            } else if (arg.equals("--cache-report")) {
+                reportCache = true;
+            } else if (arg.equals("--profile")) {
+                profile = true;
+            } else if (arg.startsWith("--profile=")) {
+                profile = true;
+                profilePath = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.equals("--heatmap")) {
+                heatmap = true;
+            } else if (arg.equals("--heatmap-timed")) {
+                heatmap = true;
+                heatmapTimed = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--batch")) {
+                batch = true;
+            } else if (arg.equals("--server")) {
+                serve = true;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                System.out.println("Usage: jlox [--vm [--disassemble] | --nodes | --closures | --jit [--jit-report]] [--types] [--optimize-report] [--call-report] [--profile[=<file>]] [--heatmap | --heatmap-timed] [--stream | --ast-cache=<dir> [--cache-report]] [--server [--port=<port>] | --batch directory | script]");
+                System.exit(64);
+            } else {
+                script = arg;
+            }
+        }
+
+        if (serve) {
+            new LoxServer(port).serve();
+        } else if (batch && script != null) {
+            System.exit(runBatch(Paths.get(script)));
+        } else if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Only the tree-walker keeps a Lox call stack to sample.
+        Profiler profiler = null;
+        if (profile && engine == Engine.TREE) {
+            profiler = new Profiler();
+            context.get().interpreter.profiler = profiler;
+            profiler.start();
+        }
+
+        int status = runScript(map(Paths.get(path)), context.get());
+        if (reportCache && cache != null) cache.printReport();
+        if (reportCalls && engine == Engine.TREE) context.get().interpreter.printCallReport();
+        if (profiler != null) writeProfile(profiler);
+        if (heatmap && engine == Engine.TREE) {
+            printHeatmap(Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8));
+        }
+        if (status != 0) System.exit(status);
+    }
+
+    private static void printHeatmap(List<String> source) {
+        CountingInterpreter interpreter = (CountingInterpreter)context.get().interpreter;
+        Heatmap heatmap = new Heatmap();
+        heatmap.add(interpreter.statements);
+        for (Expr expression : interpreter.expressions) {
+            heatmap.add(expression);
+        }
+        heatmap.print(context.get().err, source, heatmapTimed);
+    }
+
+    private static void writeProfile(Profiler profiler) throws IOException {
+        profiler.stop();
+        if (profilePath == null) {
+            profiler.write(context.get().err);
+            return;
+        }
+        try (PrintStream out = new PrintStream(Files.newOutputStream(profilePath))) {
+            profiler.write(out);
+        }
+    }
+
+    // The Scanner reads the file straight out of the page cache, with no
+    // copy into a byte[] and no decoding into a String.
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    static RunContext newContext(PrintStream out, PrintStream err) {
+        RunContext run = heatmap
+                ? new RunContext(out, err, CountingInterpreter.create(heatmapTimed))
+                : new RunContext(out, err);
+        run.vm.disassemble = disassemble;
+        run.interpreter.reportCalls = reportCalls;
+        // Compiled code would stop the counts, so --heatmap keeps it off.
+        run.interpreter.jit = jit && !heatmap;
+        run.interpreter.reportJit = reportJit;
+        return run;
+    }
 
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+    static RunContext context() {
+        return context.get();
+    }
+
+    static void setContext(RunContext run) {
+        context.set(run);
+    }
+
+    // Runs a whole script in the given context on the calling thread and
+    // returns the status runFile would exit with.
+    static int runScript(String source, RunContext run) {
+        return runScript(encode(source), run);
+    }
+
+    static int runScript(ByteBuffer source, RunContext run) {
+        RunContext previous = context.get();
+        context.set(run);
+        try {
+            run(source);
+        } finally {
+            context.set(previous);
+        }
+        return run.status();
+    }
+
+    // Runs every .lox file in the directory across all cores, printing
+    // each script's output in file order once it finishes, then a summary.
+    // Returns the worst status any script ended with.
+    private static int runBatch(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.lox")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Future<String>> results = new ArrayList<>();
+        int[] statuses = new int[files.size()];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            int index = i;
+            results.add(pool.submit(() -> {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                PrintStream stream = new PrintStream(output, true, "UTF-8");
+                statuses[index] = runScript(map(file), newContext(stream, stream));
+                return output.toString("UTF-8");
+            }));
+        }
+
+        int worst = 0;
+        int failed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String output;
+            try {
+                output = results.get(i).get();
+            } catch (InterruptedException | ExecutionException error) {
+                output = "Internal error: " + error.getCause() + "\n";
+                statuses[i] = 70;
+            }
+
+            System.out.println("== " + files.get(i) + " (status " + statuses[i] + ")");
+            System.out.print(output);
+            if (statuses[i] != 0) failed++;
+            worst = Math.max(worst, statuses[i]);
+        }
+        pool.shutdown();
+
+        System.out.printf("%d scripts, %d failed, %.1f ms%n", files.size(), failed,
+                (System.nanoTime() - start) / 1e6);
+        if (reportCache && cache != null) cache.printReport();
+        return worst;
     }
 
     private static void runPrompt() throws IOException {
@@ -41,48 +254,144 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line, true);
-            hadError = false;
+            run(encode(line), true);
+            context().hadError = false;
         }
     }
 
-    private static void run(String source) {
+    private static ByteBuffer encode(String source) {
+        return ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void run(ByteBuffer source) {
         run(source, false);
     }
 
-    private static void run(String source, boolean isPossibleExpression) {
+    private static void run(ByteBuffer source, boolean isPossibleExpression) {
+        RunContext run = context();
+        if (!isPossibleExpression && stream) {
+            runStreamed(source);
+            return;
+        }
+
+        if (!isPossibleExpression && cache != null) {
+            List<Stmt> cached = cache.load(source);
+            if (cached != null) {
+                execute(cached);
+                return;
+            }
+        }
+
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        TokenList tokens = scanner.scanTokens();
         Parser parser = new Parser(tokens);
-        Resolver resolver = new Resolver(interpreter);
+        Optimizer optimizer = new Optimizer();
+        optimizer.report = reportOptimizer;
+        TypeInferrer typeInferrer = new TypeInferrer(isPossibleExpression);
+        typeInferrer.report = reportTypes;
 
         if (!isPossibleExpression) {
             List<Stmt> statements = parser.parse();
-            if (hadError) return;
-            resolver.resolve(statements);
-            interpreter.interpret(statements);
+            if (run.hadError) return;
+            statements = resolveAndOptimize(optimizer, statements);
+            if (run.hadError) return;
+            typeInferrer.infer(statements);
+            if (cache != null) cache.store(source, statements);
+            execute(statements);
             return;
         }
 
-        printReport = false;
+        run.printReport = false;
         List<Stmt> statements = parser.parse();
-        printReport = true;
+        run.printReport = true;
 
-        if (!hadError) {
-            resolver.resolve(statements);
-            interpreter.interpret(statements);
+        if (!run.hadError) {
+            statements = resolveAndOptimize(optimizer, statements);
+            if (run.hadError) return;
+            typeInferrer.infer(statements);
+            execute(statements);
             return;
         }
 
         parser.reset();
         Expr expression = parser.parseExpression();
         if (expression != null) {
-            resolver.resolve(expression);
-            interpreter.interpret(expression);
+            expression = resolveAndOptimize(optimizer, expression);
+            if (run.hadError) return;
+            typeInferrer.infer(expression);
+            switch (engine) {
+            case VM:    run.vm.interpret(expression); break;
+            case NODES: run.nodeInterpreter.interpret(expression); break;
+            case CLOSURES: run.closureInterpreter.interpret(expression); break;
+            default:    run.interpreter.interpret(expression);
+            }
         }
         return;
     }
 
+    // Runs each top-level declaration as soon as it's parsed, holding only
+    // that declaration's tokens and tree. A syntax or resolve error stops
+    // execution but checking carries on so every error still gets reported,
+    // and a runtime error ends the run as it would anyway. Like the REPL, each
+    // declaration gets a TypeInferrer of its own, and globals and the
+    // parameters of functions bound to them are typed as anything, since
+    // later declarations can rebind them or call them with anything after
+    // earlier ones were typed.
+    // The optimizer and type reports are off, since they'd print once per
+    // declaration.
+    private static void runStreamed(ByteBuffer source) {
+        RunContext run = context();
+        Parser parser = new Parser(new Scanner(source).streamTokens());
+        Optimizer optimizer = new Optimizer();
+        // Resolve errors are kept aside to leave hadError meaning a syntax
+        // error until the end, since later declarations are still resolved.
+        boolean hadResolveError = false;
+        boolean hadSyntaxError = false;
+
+        while (parser.hasNextDeclaration() && !run.hadRuntimeError) {
+            Stmt declaration = parser.nextDeclaration();
+            hadSyntaxError |= run.hadError || declaration == null;
+            if (hadSyntaxError) continue;
+
+            List<Stmt> statements = resolveAndOptimize(optimizer,
+                    Collections.singletonList(declaration));
+            hadResolveError |= run.hadError;
+            run.hadError = false;
+            if (hadResolveError) continue;
+
+            new TypeInferrer(true).infer(statements);
+            execute(statements);
+        }
+        run.hadError |= hadResolveError;
+    }
+
+    // The Resolver reports on the tree as written, so an error in a branch
+    // the Optimizer drops is still caught. If the Optimizer changed
+    // anything, what it left is resolved again, quietly, for the engines.
+    private static List<Stmt> resolveAndOptimize(Optimizer optimizer, List<Stmt> statements) {
+        new Resolver().resolve(statements);
+        List<Stmt> optimized = optimizer.optimize(statements);
+        if (!optimized.equals(statements)) new Resolver(false).resolve(optimized);
+        return optimized;
+    }
+
+    private static Expr resolveAndOptimize(Optimizer optimizer, Expr expression) {
+        new Resolver().resolve(expression);
+        Expr optimized = optimizer.optimize(expression);
+        if (optimized != expression) new Resolver(false).resolve(optimized);
+        return optimized;
+    }
+
+    private static void execute(List<Stmt> statements) {
+        RunContext run = context();
+        switch (engine) {
+        case VM:    run.vm.interpret(statements); break;
+        case NODES: run.nodeInterpreter.interpret(statements); break;
+        case CLOSURES: run.closureInterpreter.interpret(statements); break;
+        default:    run.interpreter.interpret(statements);
+        }
+    }
+
     static void warning(Token token, String message) {
         error(token, message, true);
     }
@@ -104,15 +413,17 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        RunContext run = context();
+        run.err.println(error.getMessage() +
+                "\n[line " + error.line + "]");
+        run.hadRuntimeError = true;
     }
 
     private static void report(int line, String where, String message, boolean isWarning) {
-        if (printReport) {
-            System.err.println("[line " + line + "] " + (isWarning ? "Warning" : "Error")+ where + ": " + message);
+        RunContext run = context();
+        if (run.printReport) {
+            run.err.println("[line " + line + "] " + (isWarning ? "Warning" : "Error")+ where + ": " + message);
         }
-        hadError = !isWarning;
+        if (!isWarning) run.hadError = true;
     }
 }
@@ -0,0 +1,160 @@
+package lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+// A call in compiled code, taking the callee, the Interpreter and the
+// arguments. It starts out on the generic path, which binds the callee it
+// sees behind a guard, so a site that keeps calling one function becomes a
+// direct call HotSpot can inline. A new callee relinks it, and a site that
+// keeps changing stays generic for good.
+class LoxCallSite extends MutableCallSite {
+    private static final int MAX_RELINKS = 8;
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle GENERIC;
+    private static final MethodHandle ENTER;
+    // Entry points for the common arities, which push the arguments
+    // without gathering them into an array first.
+    private static final MethodHandle[] ENTER_FIXED = new MethodHandle[4];
+    private static final MethodHandle IS_SAME;
+    private static final MethodHandle IS_CLOSURE_OF;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType site = MethodType.methodType(Object.class,
+                LoxCallSite.class, Object.class, Interpreter.class, Object[].class);
+        try {
+            RELINK = lookup.findStatic(LoxCallSite.class, "relink", site);
+            GENERIC = lookup.findStatic(LoxCallSite.class, "generic", site);
+            ENTER = lookup.findStatic(LoxCallSite.class, "enter", MethodType.methodType(
+                    Object.class, CompiledFunction.class, Object.class, Interpreter.class,
+                    Object[].class));
+            for (int arity = 0; arity < ENTER_FIXED.length; arity++) {
+                ENTER_FIXED[arity] = lookup.findStatic(LoxCallSite.class, "enter",
+                        type(arity).insertParameterTypes(0, CompiledFunction.class));
+            }
+            IS_SAME = lookup.findStatic(LoxCallSite.class, "isSame", MethodType.methodType(
+                    boolean.class, Object.class, Object.class));
+            IS_CLOSURE_OF = lookup.findStatic(LoxCallSite.class, "isClosureOf",
+                    MethodType.methodType(boolean.class, Expr.Lambda.class, Object.class));
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    final Expr.Call expr;
+    private final int arguments;
+    private final MethodHandle relink;
+    private int relinks = 0;
+
+    LoxCallSite(Expr.Call expr) {
+        super(type(expr.arguments.size()));
+        this.expr = expr;
+        this.arguments = expr.arguments.size();
+        relink = collect(RELINK.bindTo(this));
+        setTarget(relink);
+    }
+
+    // (Object callee, Interpreter interpreter, Object... arguments)Object
+    static MethodType type(int arguments) {
+        return MethodType.genericMethodType(arguments + 2)
+                .changeParameterType(1, Interpreter.class);
+    }
+
+    private static Object relink(LoxCallSite site, Object callee,
+                                 Interpreter interpreter, Object[] arguments) {
+        site.bind(callee);
+        return interpreter.invokeWith(site.expr, callee, arguments);
+    }
+
+    private static Object generic(LoxCallSite site, Object callee,
+                                  Interpreter interpreter, Object[] arguments) {
+        return interpreter.invokeWith(site.expr, callee, arguments);
+    }
+
+    // The compiled body is bound in when the site links, or null if the
+    // callee has none.
+    private static Object enter(CompiledFunction compiled, Object callee,
+                                Interpreter interpreter, Object[] arguments) {
+        return interpreter.callWith(compiled, (LoxFunction)callee, arguments);
+    }
+
+    private static Object enter(CompiledFunction compiled, Object callee,
+                                Interpreter interpreter) {
+        return interpreter.callAt(compiled, (LoxFunction)callee, interpreter.argBase());
+    }
+
+    private static Object enter(CompiledFunction compiled, Object callee,
+                                Interpreter interpreter, Object a) {
+        int argBase = interpreter.argBase();
+        interpreter.push(a);
+        return interpreter.callAt(compiled, (LoxFunction)callee, argBase);
+    }
+
+    private static Object enter(CompiledFunction compiled, Object callee,
+                                Interpreter interpreter, Object a, Object b) {
+        int argBase = interpreter.argBase();
+        interpreter.push(a);
+        interpreter.push(b);
+        return interpreter.callAt(compiled, (LoxFunction)callee, argBase);
+    }
+
+    private static Object enter(CompiledFunction compiled, Object callee,
+                                Interpreter interpreter, Object a, Object b, Object c) {
+        int argBase = interpreter.argBase();
+        interpreter.push(a);
+        interpreter.push(b);
+        interpreter.push(c);
+        return interpreter.callAt(compiled, (LoxFunction)callee, argBase);
+    }
+
+    private static boolean isSame(Object expected, Object callee) {
+        return callee == expected;
+    }
+
+    // Every closure made from one declaration runs the same code.
+    private static boolean isClosureOf(Expr.Lambda declaration, Object callee) {
+        return callee instanceof LoxFunction &&
+                ((LoxFunction)callee).declaration == declaration;
+    }
+
+    // Calls that will fail aren't bound, so they keep reaching the
+    // Interpreter's checks. Nor are functions still warming up, so the
+    // site links to the compiled body once there is one.
+    private void bind(Object callee) {
+        if (callee instanceof LoxFunction &&
+                ((LoxFunction)callee).declaration.hotness >= 0) {
+            return;
+        }
+        if (++relinks > MAX_RELINKS) {
+            setTarget(collect(GENERIC.bindTo(this)));
+            return;
+        }
+
+        MethodHandle test;
+        MethodHandle target;
+        if (callee instanceof NativeFunction &&
+                ((NativeFunction)callee).arity() == arguments) {
+            test = IS_SAME.bindTo(callee);
+            target = MethodHandles.dropArguments(((NativeFunction)callee).handle,
+                    0, Object.class, Interpreter.class);
+        } else if (callee instanceof LoxFunction &&
+                ((LoxFunction)callee).arity() == arguments) {
+            Expr.Lambda declaration = ((LoxFunction)callee).declaration;
+            test = IS_CLOSURE_OF.bindTo(declaration);
+            target = arguments < ENTER_FIXED.length
+                    ? ENTER_FIXED[arguments] : collect(ENTER);
+            target = MethodHandles.insertArguments(target, 0, declaration.compiled);
+        } else {
+            return;
+        }
+
+        setTarget(MethodHandles.guardWithTest(test, target, relink));
+    }
+
+    private MethodHandle collect(MethodHandle handle) {
+        return handle.asCollector(Object[].class, arguments);
+    }
+}
@@ -0,0 +1,49 @@
+package lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Sends a script to a running `jlox --server` and replays its output and
+// exit status as if the script had been run here.
+public class LoxClient {
+    public static void main(String[] args) throws IOException {
+        String script = null;
+        int port = LoxServer.DEFAULT_PORT;
+
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                System.out.println("Usage: loxc [--port=<port>] script");
+                System.exit(64);
+            } else {
+                script = arg;
+            }
+        }
+
+        if (script == null) {
+            System.out.println("Usage: loxc [--port=<port>] script");
+            System.exit(64);
+        }
+
+        byte[] bytes = Files.readAllBytes(Paths.get(script));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            LoxServer.write(out, new String(bytes, Charset.defaultCharset()));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int status = in.readInt();
+            System.out.print(LoxServer.read(in));
+            System.err.print(LoxServer.read(in));
+            System.out.flush();
+            System.exit(status);
+        }
+    }
+}
@@ -3,17 +3,17 @@ package lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Token name;
-    private final Expr.Lambda declaration;
-    private final Environment closure;
+    final Token name;
+    final Expr.Lambda declaration;
+    final Cell[] upvalues;
 
-    LoxFunction(Expr.Lambda declaration, Environment closure) {
-        this(declaration, closure, null);
+    LoxFunction(Expr.Lambda declaration, Cell[] upvalues) {
+        this(declaration, upvalues, null);
     }
 
-    LoxFunction(Expr.Lambda declaration, Environment closure, Token name) {
+    LoxFunction(Expr.Lambda declaration, Cell[] upvalues, Token name) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.name = name;
     }
 
@@ -24,20 +24,7 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
-        }
-
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
-        }
-
-        return null;
+        return interpreter.call(this, arguments);
     }
 
     @Override
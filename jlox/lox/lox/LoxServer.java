@@ -0,0 +1,98 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+
+// Keeps one JVM warm and runs the scripts LoxClient sends it, so short
+// scripts don't pay for startup and a cold JIT every time. Clients are
+// served in parallel, each script in its own RunContext. Nothing a script
+// brings in outlives its RunContext, including the Symbols numbering its
+// identifiers, so a long-running server doesn't grow with the names its
+// clients send.
+//
+// A request is the script's source. A response is the exit status followed
+// by everything the script wrote to stdout and stderr. Strings go over the
+// wire as a length and then UTF-8 bytes.
+class LoxServer {
+    static final int DEFAULT_PORT = 7878;
+    // Longer than any script or output worth sending, and short enough that
+    // a bad length can't have the server allocate its heap away.
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+    private final int port;
+
+    LoxServer(int port) {
+        this.port = port;
+    }
+
+    void serve() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+            for (;;) {
+                Socket client = server.accept();
+                pool.submit(() -> {
+                    try (Socket socket = client) {
+                        handle(socket);
+                    } catch (IOException error) {
+                        System.err.println("Dropped client: " + error.getMessage());
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        String source = read(in);
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        RunContext run = Lox.newContext(new PrintStream(stdout, true, "UTF-8"),
+                new PrintStream(stderr, true, "UTF-8"));
+        int status;
+
+        try {
+            status = Lox.runScript(source, run);
+        } catch (RuntimeException | StackOverflowError error) {
+            // One bad script mustn't take the server down with it.
+            run.err.println("Internal error: " + error);
+            status = 70;
+        }
+
+        out.writeInt(status);
+        write(out, stdout.toString("UTF-8"));
+        write(out, stderr.toString("UTF-8"));
+        out.flush();
+    }
+
+    static String read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Bad string length " + length + ".");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void write(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
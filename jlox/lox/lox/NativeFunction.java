@@ -0,0 +1,54 @@
+package lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// A function written in Java. Its handle takes the arguments as they are,
+// so callers that know how many they pass call it without packing them
+// into a list.
+class NativeFunction implements LoxCallable {
+    // Takes arity Objects and returns an Object.
+    final MethodHandle handle;
+    private final MethodHandle spreader;
+
+    private NativeFunction(MethodHandle handle) {
+        this.handle = handle;
+        this.spreader = handle.asSpreader(Object[].class, handle.type().parameterCount());
+    }
+
+    // Looks up a static method of the lookup's class taking and returning
+    // Objects.
+    static NativeFunction of(MethodHandles.Lookup lookup, String name, int arity) {
+        try {
+            return new NativeFunction(lookup.findStatic(lookup.lookupClass(), name,
+                    MethodType.genericMethodType(arity)));
+        } catch (ReflectiveOperationException error) {
+            throw new IllegalArgumentException("No native " + name + ".", error);
+        }
+    }
+
+    @Override
+    public int arity() {
+        return handle.type().parameterCount();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(arguments.toArray());
+    }
+
+    Object call(Object[] arguments) {
+        try {
+            return (Object)spreader.invokeExact(arguments);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    @Override
+    public String toString() { return "<native fun>"; }
+}
@@ -0,0 +1,24 @@
+package lox;
+
+// Base of the self-specializing tree the NodeInterpreter runs. A node that
+// has learned something about the values flowing through it swaps itself
+// for a narrower version with replace(), and the parent runs that one from
+// then on.
+abstract class Node {
+    Node parent;
+
+    <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+
+    <T extends Node> T replace(T replacement) {
+        replacement.parent = parent;
+        parent.replaceChild(this, replacement);
+        return replacement;
+    }
+
+    void replaceChild(Node oldChild, Node newChild) {
+        throw new IllegalStateException("Node has no replaceable children.");
+    }
+}
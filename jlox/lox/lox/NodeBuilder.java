@@ -0,0 +1,176 @@
+package lox;
+
+import java.util.List;
+
+class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private static final AstPrinter astPrinter = new AstPrinter();
+    private final Environment globals;
+    private int scopeDepth = 0;
+
+    NodeBuilder(Environment globals) {
+        this.globals = globals;
+    }
+
+    StmtNode[] build(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = build(statements.get(i));
+        }
+        return nodes;
+    }
+
+    ExprNode build(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode build(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = build(expr.value);
+        if (expr.depth != -1) {
+            return new ExprNode.LocalWrite(expr.depth, expr.slot, value);
+        }
+        return new ExprNode.GlobalWrite(globals, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = build(expr.left);
+        ExprNode right = build(expr.right);
+
+        switch (expr.operator.type) {
+        case BANG_EQUAL:
+        case EQUAL_EQUAL:
+        case COMMA:
+            return new ExprNode.GenericBinary(expr.operator, left, right);
+        default:
+            return new ExprNode.UninitializedBinary(expr.operator, left, right);
+        }
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        return new ExprNode.Call(expr.paren, build(expr.callee), arguments);
+    }
+
+    @Override
+    public ExprNode visitLambdaExpr(Expr.Lambda expr) {
+        return lambda(expr, null);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Literal(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        return new ExprNode.Logical(expr.operator.type == TokenType.OR,
+                build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = build(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            return new ExprNode.Not(right);
+        }
+        return new ExprNode.Negate(expr.operator, right);
+    }
+
+    @Override
+    public ExprNode visitTernaryExpr(Expr.Ternary expr) {
+        return new ExprNode.Ternary(build(expr.expression),
+                build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            return new ExprNode.LocalRead(expr.depth, expr.slot);
+        }
+        return new ExprNode.GlobalRead(globals, expr.name);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        scopeDepth++;
+        StmtNode[] statements = build(stmt.statements);
+        scopeDepth--;
+        return new StmtNode.Block(stmt.scopeSize, statements);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return variable(stmt.name, lambda(stmt.lambda, stmt.name));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode initializer = null;
+        if (stmt.initializer != null) initializer = build(stmt.initializer);
+        return variable(stmt.name, initializer);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode increment = null;
+        if (stmt.increment != null) increment = build(stmt.increment);
+        return new StmtNode.While(build(stmt.condition), build(stmt.body), increment);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        StmtNode elseBranch = null;
+        if (stmt.elseBranch != null) elseBranch = build(stmt.elseBranch);
+        return new StmtNode.If(build(stmt.condition), build(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public StmtNode visitLoopControlStmt(Stmt.LoopControl stmt) {
+        return new StmtNode.LoopControl(stmt.keyword);
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        ExprNode value = null;
+        if (stmt.value != null) value = build(stmt.value);
+        return new StmtNode.Return(value);
+    }
+
+    @Override
+    public StmtNode visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        return new StmtNode.PrintSexpr(astPrinter.print(stmt.expression),
+                build(stmt.expression));
+    }
+
+    private ExprNode.Lambda lambda(Expr.Lambda expr, Token name) {
+        scopeDepth++;
+        StmtNode[] body = build(expr.body);
+        scopeDepth--;
+        return new ExprNode.Lambda(name, expr.params.size(), expr.scopeSize, body);
+    }
+
+    // Only declarations outside every block and function land in globals.
+    private StmtNode variable(Token name, ExprNode initializer) {
+        if (scopeDepth == 0) return new StmtNode.GlobalVar(name, initializer);
+        return new StmtNode.LocalVar(initializer);
+    }
+}
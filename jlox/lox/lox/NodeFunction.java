@@ -0,0 +1,45 @@
+package lox;
+
+import java.util.List;
+
+class NodeFunction implements LoxCallable {
+    private final ExprNode.Lambda declaration;
+    private final Environment closure;
+
+    NodeFunction(ExprNode.Lambda declaration, Environment closure) {
+        this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    @Override
+    public int arity() {
+        return declaration.arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Environment environment = new Environment(closure, declaration.scopeSize);
+
+        for (int i = 0; i < declaration.arity; i++) {
+            environment.define(arguments.get(i));
+        }
+
+        try {
+            for (StmtNode statement : declaration.body) {
+                statement.execute(environment);
+            }
+        } catch (Return returnValue) {
+            return returnValue.value;
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        if (declaration.name == null) {
+            return "<lambda>";
+        }
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
@@ -0,0 +1,41 @@
+package lox;
+
+import java.util.List;
+
+class NodeInterpreter {
+    private final Environment globals = new Environment();
+
+    NodeInterpreter() {
+        Interpreter.defineNatives(globals);
+    }
+
+    void interpret(List<Stmt> statements) {
+        StmtNode[] nodes = new NodeBuilder(globals).build(statements);
+
+        try {
+            for (StmtNode node : nodes) {
+                try {
+                    node.execute(globals);
+                } catch (Return | LoopControl signal) {
+                    // A return or break at the top level, which the Resolver
+                    // has already reported. Like the tree engine, carry on
+                    // with the next statement.
+                }
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    void interpret(Expr expr) {
+        // Wrapped so the root expression has a parent to specialize into.
+        StmtNode.Expression root =
+                new StmtNode.Expression(new NodeBuilder(globals).build(expr));
+
+        try {
+            Lox.context().out.println(Interpreter.stringify(root.expression.execute(globals)));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package lox;
+
+final class OpCode {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_CONSTANT_LONG = 1;
+    static final byte OP_NIL = 2;
+    static final byte OP_TRUE = 3;
+    static final byte OP_FALSE = 4;
+    static final byte OP_POP = 5;
+    static final byte OP_GET_LOCAL = 6;
+    static final byte OP_SET_LOCAL = 7;
+    static final byte OP_GET_GLOBAL = 8;
+    static final byte OP_DEFINE_GLOBAL = 9;
+    static final byte OP_DECLARE_GLOBAL = 10;
+    static final byte OP_SET_GLOBAL = 11;
+    static final byte OP_GET_UPVALUE = 12;
+    static final byte OP_SET_UPVALUE = 13;
+    static final byte OP_EQUAL = 14;
+    static final byte OP_GREATER = 15;
+    static final byte OP_GREATER_EQUAL = 16;
+    static final byte OP_LESS = 17;
+    static final byte OP_LESS_EQUAL = 18;
+    static final byte OP_ADD = 19;
+    static final byte OP_SUBTRACT = 20;
+    static final byte OP_MULTIPLY = 21;
+    static final byte OP_DIVIDE = 22;
+    static final byte OP_NOT = 23;
+    static final byte OP_NEGATE = 24;
+    static final byte OP_PRINT_SEXPR = 25;
+    static final byte OP_JUMP = 26;
+    static final byte OP_JUMP_IF_FALSE = 27;
+    static final byte OP_LOOP = 28;
+    static final byte OP_CALL = 29;
+    static final byte OP_CLOSURE = 30;
+    static final byte OP_CLOSE_UPVALUE = 31;
+    static final byte OP_RETURN = 32;
+
+    private OpCode() {}
+}
@@ -0,0 +1,407 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs after the Resolver has checked the tree as written, folding operators
+// over literals and dropping branches and loops whose condition is a
+// literal. Anything that would fail at runtime, like 1 - "a", is left alone
+// so the error still happens there.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private static final NodeCounter counter = new NodeCounter();
+    private static final Object NOT_FOLDED = new Object();
+    boolean report = false;
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        int before = counter.count(statements);
+        List<Stmt> optimized = optimizeAll(statements);
+        printReport(before, counter.count(optimized));
+        return optimized;
+    }
+
+    Expr optimize(Expr expr) {
+        int before = counter.count(expr);
+        Expr optimized = fold(expr);
+        printReport(before, counter.count(optimized));
+        return optimized;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = fold(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            // The left side of a comma only matters for its side effects.
+            if (expr.operator.type == TokenType.COMMA) return right;
+
+            if (right instanceof Expr.Literal) {
+                Object value = foldBinary(expr.operator,
+                        ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+                if (value != NOT_FOLDED) return new Expr.Literal(value);
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = fold(expr.callee);
+        List<Expr> arguments = new ArrayList<>();
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr folded = fold(argument);
+            changed |= folded != argument;
+            arguments.add(folded);
+        }
+
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        List<Stmt> body = optimizeAll(expr.body);
+        if (body.equals(expr.body)) return expr;
+        return new Expr.Lambda(expr.params, body);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = fold(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = fold(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new Expr.Literal(-(double)value);
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = fold(expr.expression);
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+
+        if (condition instanceof Expr.Literal) {
+            return Interpreter.isTruthy(((Expr.Literal)condition).value) ? left : right;
+        }
+
+        if (condition == expr.expression && left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, left, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeAll(stmt.statements);
+        if (statements.equals(stmt.statements)) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = fold(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Expr.Lambda lambda = (Expr.Lambda)fold(stmt.lambda);
+        if (lambda == stmt.lambda) return stmt;
+        return new Stmt.Function(stmt.name, lambda);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = fold(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = fold(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+                !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+
+        Stmt body = orEmpty(optimize(stmt.body));
+        Expr increment = stmt.increment == null ? null : fold(stmt.increment);
+        if (condition == stmt.condition && body == stmt.body &&
+                increment == stmt.increment) {
+            return stmt;
+        }
+        return new Stmt.While(condition, body, increment);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = fold(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitLoopControlStmt(Stmt.LoopControl stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = fold(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        // Left as written, since printing the tree is the point.
+        return stmt;
+    }
+
+    private Expr fold(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // Statements optimized away are dropped from the list.
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result != null) optimized.add(result);
+        }
+        return optimized;
+    }
+
+    private Stmt orEmpty(Stmt stmt) {
+        if (stmt != null) return stmt;
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    // Returns NOT_FOLDED when folding would change what happens at runtime.
+    private Object foldBinary(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+
+            switch (operator.type) {
+            case GREATER:       return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS:          return a < b;
+            case LESS_EQUAL:    return a <= b;
+            case MINUS:         return a - b;
+            case PLUS:          return a + b;
+            case SLASH:         return a / b;
+            case STAR:          return a * b;
+            default:
+            }
+        }
+
+        switch (operator.type) {
+        case PLUS:
+            if (left instanceof String || right instanceof String) {
+                return Interpreter.stringify(left) + Interpreter.stringify(right);
+            }
+            break;
+        case BANG_EQUAL:  return !Interpreter.isEqual(left, right);
+        case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+        default:
+        }
+
+        return NOT_FOLDED;
+    }
+
+    private void printReport(int before, int after) {
+        if (!report || before == 0) return;
+        Lox.context().err.printf("[optimizer] %d -> %d nodes (%.1f%% fewer)%n",
+                before, after, 100.0 * (before - after) / before);
+    }
+
+    private static class NodeCounter implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        int count(List<Stmt> statements) {
+            int count = 0;
+            for (Stmt statement : statements) {
+                count += statement.accept(this);
+            }
+            return count;
+        }
+
+        int count(Expr expr) {
+            return expr == null ? 0 : expr.accept(this);
+        }
+
+        int count(Stmt stmt) {
+            return stmt == null ? 0 : stmt.accept(this);
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return 1 + count(expr.value);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return 1 + count(expr.left) + count(expr.right);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int count = 1 + count(expr.callee);
+            for (Expr argument : expr.arguments) {
+                count += count(argument);
+            }
+            return count;
+        }
+
+        @Override
+        public Integer visitLambdaExpr(Expr.Lambda expr) {
+            return 1 + count(expr.body);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return 1 + count(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            return 1 + count(expr.left) + count(expr.right);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return 1 + count(expr.right);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            return 1 + count(expr.expression) + count(expr.left) + count(expr.right);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            return 1 + count(stmt.statements);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return 1 + count(stmt.expression);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            return 1 + count(stmt.lambda);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return 1 + count(stmt.initializer);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return 1 + count(stmt.condition) + count(stmt.body) + count(stmt.increment);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            return 1 + count(stmt.condition) + count(stmt.thenBranch) + count(stmt.elseBranch);
+        }
+
+        @Override
+        public Integer visitLoopControlStmt(Stmt.LoopControl stmt) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            return 1 + count(stmt.value);
+        }
+
+        @Override
+        public Integer visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+            return 1 + count(stmt.expression);
+        }
+    }
+}
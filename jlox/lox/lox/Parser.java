@@ -9,10 +9,10 @@ import static lox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final TokenList tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenList tokens) {
         this.tokens = tokens;
     }
 
@@ -29,6 +29,18 @@ class Parser {
         return statements;
     }
 
+    // For streaming: top-level declarations one at a time. The Parser never
+    // rewinds past the start of one, so the tokens before it are dropped.
+    boolean hasNextDeclaration() {
+        tokens.discardBefore(current);
+        return !isAtEnd();
+    }
+
+    // Null if the declaration had a syntax error.
+    Stmt nextDeclaration() {
+        return declaration();
+    }
+
     public Expr parseExpression() {
         try {
             Expr value = expression();
@@ -93,7 +105,7 @@ class Parser {
         return new Stmt.If(condition, thenBranch, elseBranch);
     }
 
-    private Stmt forStatement() { //TODO continue doesn't work if for is a derived expression.
+    private Stmt forStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -119,15 +131,9 @@ class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-
+        // The increment stays on the loop so 'continue' still runs it.
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(condition, body, increment);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -140,10 +146,10 @@ class Parser {
     private Stmt whileStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(LEFT_PAREN, "Expect ')' after while condition.");
+        consume(RIGHT_PAREN, "Expect ')' after while condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(condition, body, null);
     }
 
     private Stmt loopControlStatement() {
@@ -190,7 +196,7 @@ class Parser {
                     error(peek(), "Can't have more than 255 arguments.");
                 }
 
-                parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+                parameters.add(consumeToken(IDENTIFIER, "Expect parameter name."));
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -203,7 +209,7 @@ class Parser {
 
     private Stmt varDeclaration() {
         Expr initializer = null;
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        Token name = consumeToken(IDENTIFIER, "Expect variable name.");
 
         if (match(EQUAL)) initializer = expression();
         consume(SEMICOLON, "Expect ';' after variable declaration.");
@@ -225,7 +231,9 @@ class Parser {
 
     private Expr lambda(boolean commaParseable) {
         final int tokenIndex = currentIndex();
-        final List<Token> parameters = new ArrayList<>();
+        // Most expressions turn out not to be lambdas, so the parameters'
+        // Tokens aren't made until the '=>' shows up.
+        int arity = 0;
         TokenType delimeter = GREATER_EQUAL;
 
         if (match(LEFT_PAREN)) delimeter = RIGHT_PAREN;
@@ -235,7 +243,8 @@ class Parser {
                     rewind(tokenIndex);
                     return commaParseable ? comma() : assignment();
                 }
-                parameters.add(advance());
+                current++;
+                arity++;
             } while (match(COMMA));
         }
 
@@ -245,7 +254,7 @@ class Parser {
                 rewind(tokenIndex);
                 return primary();
             }
-        } else if (parameters.size() == 0) {
+        } else if (arity == 0) {
             error(peek(), "EXPECT '()' or parameters.");
         }
 
@@ -254,6 +263,11 @@ class Parser {
             return commaParseable ? comma() : assignment();
         }
 
+        List<Token> parameters = new ArrayList<>(arity);
+        for (int i = tokenIndex; parameters.size() < arity; i++) {
+            if (tokens.type(i) == IDENTIFIER) parameters.add(tokens.get(i));
+        }
+
         List<Stmt> body;
         if (match(LEFT_BRACE)) {
             body = block();
@@ -281,7 +295,7 @@ class Parser {
         Expr expr = or();
 
         if (match(EQUAL)) {
-            Token equals = previous();
+            int equals = current - 1;
             Expr value = assignment();
 
             if (expr instanceof Expr.Variable) {
@@ -298,7 +312,7 @@ class Parser {
             //     }
             // }
 
-            error(equals, "Invalid assignment target.");
+            error(tokens.get(equals), "Invalid assignment target.");
         }
 
         return expr;
@@ -437,7 +451,7 @@ class Parser {
                 arguments.add(nonCommaExpression());
             } while (match(COMMA));
         }
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = consumeToken(RIGHT_PAREN, "Expect ')' after arguments.");
 
         return new Expr.Call(callee, paren, arguments);
     }
@@ -448,7 +462,7 @@ class Parser {
         if (match(NIL)) return new Expr.Literal(null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (match(IDENTIFIER)) {
@@ -466,22 +480,29 @@ class Parser {
 
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
+            // Skips the token without making a Token object for it.
             if (check(type)) {
-                advance();
+                current++;
                 return true;
             }
         }
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+    private void consume(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        current++;
+    }
+
+    // Only for tokens that end up in the tree.
+    private Token consumeToken(TokenType type, String message) {
+        consume(type, message);
+        return previous();
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private Token advance() {
@@ -490,7 +511,7 @@ class Parser {
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
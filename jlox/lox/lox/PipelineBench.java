@@ -0,0 +1,149 @@
+package lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Measures each stage of the pipeline on its own so a regression can be
+// pinned on the Scanner, Parser, Resolver or Interpreter. Every stage gets
+// its input prepared by the stages before it, outside the timed loop, and
+// is reported as ops/sec and bytes allocated per op for each script. The
+// closures stage runs the same trees on the ClosureInterpreter, compiling
+// included, to set it against the Interpreter's execute stage.
+//
+//     javac -d classes lox/PipelineBench.java
+//     java -cp classes lox.PipelineBench [lox_files directory]
+class PipelineBench {
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private static final PrintStream discard = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    });
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> corpus = new LinkedHashMap<>();
+        // make runs from jlox/, next to the bundled scripts.
+        Path bundled = Paths.get(args.length > 0 ? args[0] : "../lox_files");
+        if (!Files.isDirectory(bundled)) {
+            System.err.println("No corpus directory at " + bundled.toAbsolutePath() + ".");
+            System.exit(66);
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(bundled, "*.lox")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            // The Scanner reads source as UTF-8 bytes.
+            corpus.put(file.getFileName().toString(),
+                    new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+        corpus.put("generated-small", generate(20));
+        corpus.put("generated-large", generate(400));
+
+        System.out.printf("%-8s %-18s %14s %14s%n", "stage", "script", "ops/s", "B/op");
+        for (Map.Entry<String, String> script : corpus.entrySet()) {
+            bench(script.getKey(), script.getValue());
+        }
+    }
+
+    private static void bench(String name, String source) {
+        // Warnings, errors and the scripts' own output would drown the
+        // results, so only the report lines reach stdout.
+        PrintStream out = System.out;
+        RunContext previous = Lox.context();
+        Lox.setContext(Lox.newContext(discard, discard));
+        try {
+            TokenList tokens = new Scanner(source).scanTokens();
+            List<Stmt> statements = new Parser(tokens).parse();
+            new Resolver().resolve(statements);
+            new TypeInferrer(false).infer(statements);
+
+            report(out, "scan", name, () -> new Scanner(source).scanTokens());
+            report(out, "parse", name, () -> new Parser(tokens).parse());
+            report(out, "resolve", name, () -> {
+                new Resolver().resolve(statements);
+                return null;
+            });
+            report(out, "execute", name, () -> {
+                new Interpreter().interpret(statements);
+                return null;
+            });
+            report(out, "closures", name, () -> {
+                new ClosureInterpreter().interpret(statements);
+                return null;
+            });
+        } finally {
+            Lox.setContext(previous);
+        }
+    }
+
+    private static void report(PrintStream out, String stage, String name,
+                               Supplier<Object> operation) {
+        run(operation, WARMUP_NANOS);
+
+        long threadId = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long ops = run(operation, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+        out.printf("%-8s %-18s %14.1f %14d%n", stage, name,
+                ops * 1e9 / elapsed, allocated / ops);
+    }
+
+    private static long run(Supplier<Object> operation, long nanos) {
+        long ops = 0;
+        long end = System.nanoTime() + nanos;
+        do {
+            operation.get();
+            ops++;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    // Functions mixing the things the interpreter spends its time on:
+    // calls, loops with continue, arithmetic, strings and closures.
+    private static String generate(int functions) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            source.append("fun f").append(i).append("(n) {\n")
+                  .append("    var total = 0;\n")
+                  .append("    var label = \"f").append(i).append("\";\n")
+                  .append("    for (var j = 0; j < n; j = j + 1) {\n")
+                  .append("        if (j == ").append(i % 7).append(") continue;\n")
+                  .append("        total = total + j * ").append(i + 1).append(" - 1;\n")
+                  .append("    }\n")
+                  .append("    var add = (x) => x + total;\n")
+                  .append("    return add(").append(i).append(") + (label == \"\" ? 1 : 0);\n")
+                  .append("}\n");
+        }
+
+        List<String> calls = new ArrayList<>();
+        for (int i = 0; i < functions; i++) {
+            calls.add("f" + i + "(10)");
+        }
+        source.append("var sum = ").append(String.join(" + ", calls)).append(";\n");
+        return source.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package lox;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+// Samples which Lox functions a script spends its time in. The Interpreter
+// keeps the stack of running functions here as it calls and returns, with
+// plain stores and the depth published opaquely, so keeping it costs a few
+// instructions a call. A background thread reads it once per interval
+// without stopping the Interpreter. A sample can catch the stack mid-change
+// and be a frame out, which washes out over many samples. Samples are
+// counted per distinct stack and written in the collapsed format flame
+// graph tools read: frames from the outermost in, separated by ';', then
+// the count.
+class Profiler {
+    static final long INTERVAL_NANOS = 1_000_000;
+    private static final VarHandle DEPTH;
+    static {
+        try {
+            DEPTH = MethodHandles.lookup().findVarHandle(Profiler.class, "depth", int.class);
+        } catch (ReflectiveOperationException error) {
+            throw new ExceptionInInitializerError(error);
+        }
+    }
+
+    // Only replaced when it grows, so the sampler sees the new array soon
+    // after.
+    private volatile LoxFunction[] stack = new LoxFunction[64];
+    private int depth = 0;
+    // Touched only by the sampling thread until it has stopped.
+    private final Map<String, Long> samples = new HashMap<>();
+    private Thread sampler;
+
+    void start() {
+        sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(INTERVAL_NANOS);
+                sample();
+            }
+        }, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() {
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void enter(LoxFunction function) {
+        LoxFunction[] frames = stack;
+        if (depth == frames.length) stack = frames = Arrays.copyOf(frames, depth * 2);
+        frames[depth] = function;
+        DEPTH.setOpaque(this, depth + 1);
+    }
+
+    // A tail call runs in its caller's frame, so it takes over its entry.
+    void replace(LoxFunction function) {
+        stack[depth - 1] = function;
+    }
+
+    void exit() {
+        DEPTH.setOpaque(this, depth - 1);
+    }
+
+    private void sample() {
+        LoxFunction[] frames = stack;
+        int sampled = Math.min((int)DEPTH.getOpaque(this), frames.length);
+
+        StringBuilder key = new StringBuilder("<script>");
+        for (int i = 0; i < sampled; i++) {
+            LoxFunction function = frames[i];
+            if (function != null) key.append(';').append(frame(function));
+        }
+        samples.merge(key.toString(), 1L, Long::sum);
+    }
+
+    // Named functions are told apart by the line they're declared on.
+    // Lambdas have no name, so the line of their first parameter stands in
+    // where there is one.
+    private static String frame(LoxFunction function) {
+        if (function.name != null) {
+            return function.name.lexeme + ":" + function.name.line;
+        }
+        List<Token> params = function.declaration.params;
+        if (params.isEmpty()) return "<lambda>";
+        return "<lambda>:" + params.get(0).line;
+    }
+
+    void write(PrintStream out) {
+        List<String> stacks = new ArrayList<>(samples.keySet());
+        stacks.sort(null);
+        for (String stack : stacks) {
+            out.println(stack + " " + samples.get(stack));
+        }
+        out.flush();
+    }
+}
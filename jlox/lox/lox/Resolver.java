@@ -1,10 +1,14 @@
 package lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
+// Checks the scoping rules and annotates each variable with where it lives.
+// Every annotation is written afresh on each resolve, so a tree can be
+// resolved again once the Optimizer has changed it; that second time, a
+// Resolver made with report off keeps the diagnostics from being repeated.
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum FunctionType {
         NONE, FUNCTION
@@ -16,25 +20,75 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private class ScopeData {
         Token name;
+        int depth;
+        int slot;
+        // Index in the owning function's frame on the Interpreter's stack.
+        int local;
         Boolean defined = false;
         Boolean referenced = false;
-
-        ScopeData(Token name) {
+        boolean captured = false;
+        // The Stmt.Var or Stmt.Function, or the Expr.Lambda for a parameter,
+        // plus every read and write, so all of them can be told once the
+        // scope ends whether the variable lives in a Cell.
+        Object declaration;
+        final List<Expr> uses = new ArrayList<>();
+
+        ScopeData(Token name, int depth, int slot, int local) {
             this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.local = local;
         }
 
         public String toString() {
-            return "defined: " + defined + " " + "referenced: " + referenced;
+            return "slot: " + slot + " defined: " + defined + " " + "referenced: " + referenced;
+        }
+    }
+
+    private class Scope extends HashMap<String, ScopeData> {
+        // Counts redeclarations too, so slots always match definition order.
+        int slots = 0;
+        // Frame index of the scope's first local; blocks continue on from
+        // wherever the enclosing scope of the same function has got to.
+        final int base;
+        final int function;
+        // Includes variables shadowed by a redeclaration.
+        final List<ScopeData> declared = new ArrayList<>();
+
+        Scope(int base, int function) {
+            this.base = base;
+            this.function = function;
+        }
+    }
+
+    // Upvalues are encoded the way Expr.Lambda.upvalues stores them: an
+    // index >= 0 is a local of the enclosing function's frame, and -1 - i
+    // is the enclosing function's own upvalue i.
+    private class FunctionScope {
+        final List<Integer> upvalues = new ArrayList<>();
+
+        int addUpvalue(int encoded) {
+            int index = upvalues.indexOf(encoded);
+            if (index != -1) return index;
+            upvalues.add(encoded);
+            return upvalues.size() - 1;
         }
     }
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, ScopeData>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
+    // The first entry stands for top-level code, which owns top-level blocks.
+    private final Stack<FunctionScope> functions = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private LoopType currentLoop = LoopType.NONE;
+    private final boolean report;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver() {
+        this(true);
+    }
+
+    Resolver(boolean report) {
+        this.report = report;
+        functions.push(new FunctionScope());
     }
 
     void resolve(List<Stmt> statements) {
@@ -50,7 +104,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        ScopeData data = resolveLocal(expr.name);
+        if (data != null) {
+            expr.depth = scopes.size() - 1 - data.depth;
+            expr.slot = data.slot;
+            if (isOwnLocal(data)) {
+                expr.local = data.local;
+            } else {
+                expr.upvalue = resolveUpvalue(functions.size() - 1, data);
+            }
+            data.uses.add(expr);
+        }
         return null;
     }
 
@@ -75,13 +139,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = FunctionType.FUNCTION;
 
-        beginScope();
+        FunctionScope function = new FunctionScope();
+        functions.push(function);
+        expr.capturedParams = new boolean[expr.params.size()];
+
+        scopes.push(new Scope(0, functions.size() - 1));
         for (Token param : expr.params) {
-            declare(param);
+            ScopeData data = declare(param);
+            data.declaration = expr;
             define(param);
         }
         resolve(expr.body);
-        endScope();
+        expr.scopeSize = endScope().slots;
+
+        functions.pop();
+        expr.upvalues = new int[function.upvalues.size()];
+        for (int i = 0; i < expr.upvalues.length; i++) {
+            expr.upvalues[i] = function.upvalues.get(i);
+        }
 
         currentFunction = enclosingFunction;
         return null;
@@ -121,16 +196,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        ScopeData data = scopes.peek().get(expr.name.lexeme);
-        if (!scopes.isEmpty() && data != null) {
+        if (!scopes.isEmpty()) {
+            ScopeData data = scopes.peek().get(expr.name.lexeme);
             // System.out.println(expr.name.lexeme + " " + expr.name.line + " " + data);
-            if (data.defined == Boolean.FALSE) {
-                Lox.error(expr.name,
+            if (data != null && data.defined == Boolean.FALSE) {
+                error(expr.name,
                         "Can't read local variable in its own initializer.");
             }
         }
 
-        resolveLocal(expr, expr.name);
+        ScopeData data = resolveLocal(expr.name);
+        if (data != null) {
+            expr.depth = scopes.size() - 1 - data.depth;
+            expr.slot = data.slot;
+            if (isOwnLocal(data)) {
+                expr.local = data.local;
+            } else {
+                expr.upvalue = resolveUpvalue(functions.size() - 1, data);
+            }
+            data.uses.add(expr);
+        }
         return null;
     }
 
@@ -138,7 +223,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.scopeSize = endScope().slots;
         return null;
     }
 
@@ -150,7 +235,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        ScopeData data = declare(stmt.name);
+        if (data != null) {
+            data.declaration = stmt;
+            stmt.local = data.local;
+        }
         define(stmt.name);
         resolve(stmt.lambda);
         return null;
@@ -158,7 +247,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        ScopeData data = declare(stmt.name);
+        if (data != null) {
+            data.declaration = stmt;
+            stmt.local = data.local;
+        }
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -173,6 +266,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         resolve(stmt.condition);
         resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
 
         currentLoop = enclosingLoop;
         return null;
@@ -190,7 +284,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
         if (currentLoop == LoopType.NONE) {
-            Lox.error(stmt.keyword,
+            error(stmt.keyword,
                     "Can't execute a loop control statement outsie of a loop.");
         }
         return null;
@@ -199,11 +293,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             resolve(stmt.value);
+            // Nothing runs in the caller after a returned call, so the
+            // Interpreter can reuse the caller's frame for it.
+            stmt.tail = currentFunction != FunctionType.NONE &&
+                    stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -230,27 +328,43 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, ScopeData>());
+        int function = functions.size() - 1;
+        int base = 0;
+        if (!scopes.isEmpty() && scopes.peek().function == function) {
+            base = scopes.peek().base + scopes.peek().slots;
+        }
+        scopes.push(new Scope(base, function));
     }
 
-    private void endScope() {
-        Map<String, ScopeData> scope = scopes.pop();
+    private Scope endScope() {
+        Scope scope = scopes.pop();
 
         scope.forEach((k, v) -> {
-            if (!v.referenced) {
+            if (!v.referenced && report) {
                 Lox.warning(v.name, "Variable is unused.");
             }
         });
+
+        for (ScopeData data : scope.declared) {
+            markCaptured(data, data.captured);
+        }
+        return scope;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, ScopeData> scope = scopes.peek();
+    private ScopeData declare(Token name) {
+        if (scopes.isEmpty()) return null;
+        Scope scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            error(name,
                     "Already a variable with this name in this scope.");
         }
-        scope.put(name.lexeme, new ScopeData(name));
+
+        ScopeData data = new ScopeData(name, scopes.size() - 1,
+                scope.slots, scope.base + scope.slots);
+        scope.slots++;
+        scope.put(name.lexeme, data);
+        scope.declared.add(data);
+        return data;
     }
 
     private void define(Token name) {
@@ -258,16 +372,58 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         scopes.peek().get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        int scopesSize = scopes.size();
+    private boolean isOwnLocal(ScopeData data) {
+        return scopes.get(data.depth).function == functions.size() - 1;
+    }
+
+    // Walks out from the function at the given level to the one declaring
+    // the variable, adding an upvalue to each function in between.
+    private int resolveUpvalue(int function, ScopeData data) {
+        data.captured = true;
+
+        int owner = scopes.get(data.depth).function;
+        if (owner == function - 1) {
+            return functions.get(function).addUpvalue(data.local);
+        }
+
+        int enclosing = resolveUpvalue(function - 1, data);
+        return functions.get(function).addUpvalue(-1 - enclosing);
+    }
+
+    // A captured variable lives in a Cell so closures share it after its
+    // frame is gone. An earlier resolve may have seen a capture the
+    // Optimizer has since dropped, so uncaptured ones are cleared too.
+    private void markCaptured(ScopeData data, boolean captured) {
+        if (data.declaration instanceof Stmt.Var) {
+            ((Stmt.Var)data.declaration).cell = captured;
+        } else if (data.declaration instanceof Stmt.Function) {
+            ((Stmt.Function)data.declaration).cell = captured;
+        } else if (data.declaration instanceof Expr.Lambda) {
+            ((Expr.Lambda)data.declaration).capturedParams[data.slot] = captured;
+        }
+
+        for (Expr use : data.uses) {
+            if (use instanceof Expr.Variable) {
+                ((Expr.Variable)use).cell = captured;
+            } else {
+                ((Expr.Assign)use).cell = captured;
+            }
+        }
+    }
+
+    private void error(Token token, String message) {
+        if (report) Lox.error(token, message);
+    }
 
-        for (int i = scopesSize - 1; i >= 0; i--) {
+    private ScopeData resolveLocal(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
             ScopeData data = scopes.get(i).get(name.lexeme);
             if (data != null) {
                 data.referenced = true;
-                interpreter.resolve(expr, scopesSize - 1 - i);
-                return;
+                return data;
             }
         }
+
+        return null;
     }
 }
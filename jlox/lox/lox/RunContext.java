@@ -0,0 +1,39 @@
+package lox;
+
+import java.io.PrintStream;
+
+// Everything one run of Lox source reports into and keeps between lines of
+// the REPL: its output, its error flags and the engines holding its
+// globals. Lox binds one to the running thread for the whole run, so
+// scripts on different threads never see each other's state.
+class RunContext {
+    final PrintStream out;
+    final PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    boolean printReport = true;
+    // Numbers the identifiers of this run's source, and is dropped with it.
+    final Symbols symbols = new Symbols();
+
+    final Interpreter interpreter;
+    final VM vm = new VM();
+    final NodeInterpreter nodeInterpreter = new NodeInterpreter();
+    final ClosureInterpreter closureInterpreter = new ClosureInterpreter();
+
+    RunContext(PrintStream out, PrintStream err) {
+        this(out, err, new Interpreter());
+    }
+
+    RunContext(PrintStream out, PrintStream err, Interpreter interpreter) {
+        this.out = out;
+        this.err = err;
+        this.interpreter = interpreter;
+    }
+
+    // The status runFile exits with.
+    int status() {
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+}
@@ -1,20 +1,34 @@
 package lox;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import static lox.TokenType.*;
 
+// Works on UTF-8 bytes, so a file can be scanned straight out of a mapped
+// buffer without first being decoded into a String. Outside of strings
+// and comments Lox is plain ASCII, so nothing else needs decoding.
 class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final int length;
+    private TokenList tokens;
     private static final Map<String, TokenType> keywords = new HashMap<>();
+    private static final byte[][] keywordBytes;
+    private static final TokenType[] keywordTypes;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
+    // Identifiers seen so far, so each name is only made into a String and
+    // looked up in Symbols once per scan.
+    private String[] names = new String[64];
+    private int[] nameHashes = new int[64];
+    private int[] nameSymbols = new int[64];
+    private int nameCount = 0;
+
     static {
         keywords.put("and", AND);
         keywords.put("class", CLASS);
@@ -35,24 +49,70 @@ class Scanner {
         keywords.put("while", WHILE);
         keywords.put("break", BREAK);
         keywords.put("continue", CONTINUE);
+
+        keywordBytes = new byte[keywords.size()][];
+        keywordTypes = new TokenType[keywords.size()];
+        int i = 0;
+        for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+            keywordBytes[i] = keyword.getKey().getBytes(StandardCharsets.US_ASCII);
+            keywordTypes[i] = keyword.getValue();
+            i++;
+        }
     }
 
     Scanner(String source) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Reads with absolute gets, so the buffer's position is left alone.
+    Scanner(ByteBuffer source) {
         this.source = source;
+        this.length = source.limit();
+    }
+
+    static Set<String> keywords() {
+        return keywords.keySet();
     }
 
-    List<Token> scanTokens() {
+    static TokenType keyword(String text) {
+        return keywords.get(text);
+    }
+
+    TokenList scanTokens() {
+        // Generated code averages a token every few bytes.
+        tokens = new TokenList(source, Math.max(16, length / 4));
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line, null);
         return tokens;
     }
 
+    // Hands back the list straight away; tokens get scanned as the Parser
+    // reaches for them.
+    TokenList streamTokens() {
+        tokens = new TokenList(source, 256);
+        tokens.stream(this);
+        return tokens;
+    }
+
+    // Scans until there's at least one more token, or EOF.
+    void scanNext() {
+        int scanned = tokens.size();
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+            if (tokens.size() > scanned) return;
+        }
+
+        tokens.add(EOF, current, 0, line, null);
+        tokens.finish();
+    }
+
     private void scanToken() {
-        char c = advance();
+        byte c = advance();
         switch (c) {
         case '(': addToken(LEFT_PAREN); break;
         case ')': addToken(RIGHT_PAREN); break;
@@ -88,17 +148,22 @@ class Scanner {
             } else if (isAlphaNumeric(c)) {
                 identifier();
             } else {
-                Lox.error(line, "Unexpected character, '" + c + "'.");
+                Lox.error(line, "Unexpected character, '" + character() + "'.");
             }
         }
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+
+        TokenType type = keyword();
+        if (type != null) {
+            addToken(type);
+        } else {
+            int index = name();
+            tokens.add(IDENTIFIER, start, current - start, line,
+                    names[index], nameSymbols[index]);
+        }
     }
 
     private void number() {
@@ -109,7 +174,7 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, Double.parseDouble(text(start, current)));
     }
 
     private void string() {
@@ -125,7 +190,7 @@ class Scanner {
 
         advance(); // The closing "
 
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(STRING, value);
     }
 
@@ -133,7 +198,7 @@ class Scanner {
         int blockStartLine = line;
 
         while (!isAtEnd()) {
-            char c = peek();
+            byte c = peek();
 
             if (c == '/' && peekNext() == '*') {
                 advance();
@@ -152,44 +217,128 @@ class Scanner {
         Lox.error(blockStartLine, "Unterminated block comment.");
     }
 
+    private TokenType keyword() {
+        int size = current - start;
+        for (int i = 0; i < keywordBytes.length; i++) {
+            byte[] keyword = keywordBytes[i];
+            if (keyword.length != size) continue;
+
+            int j = 0;
+            while (j < size && source.get(start + j) == keyword[j]) j++;
+            if (j == size) return keywordTypes[i];
+        }
+        return null;
+    }
+
+    // Looks the identifier's bytes up in an open-addressed table and only
+    // decodes them the first time the name turns up. Returns its index in
+    // the table.
+    private int name() {
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+
+        int mask = names.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            String name = names[index];
+            if (name == null) {
+                name = text(start, current);
+                names[index] = name;
+                nameHashes[index] = hash;
+                nameSymbols[index] = Lox.context().symbols.intern(name);
+                if (++nameCount * 2 > names.length) return growNames(index);
+                return index;
+            }
+            if (nameHashes[index] == hash && sameName(name)) return index;
+        }
+    }
+
+    // Identifiers are ASCII, so a name's chars line up with its bytes.
+    private boolean sameName(String name) {
+        if (name.length() != current - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    // Returns where the entry at added ended up.
+    private int growNames(int added) {
+        String[] oldNames = names;
+        int[] oldHashes = nameHashes;
+        int[] oldSymbols = nameSymbols;
+        names = new String[oldNames.length * 2];
+        nameHashes = new int[oldNames.length * 2];
+        nameSymbols = new int[oldNames.length * 2];
+
+        int mask = names.length - 1;
+        int moved = -1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) continue;
+            int index = oldHashes[i] & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = oldNames[i];
+            nameHashes[index] = oldHashes[i];
+            nameSymbols[index] = oldSymbols[i];
+            if (i == added) moved = index;
+        }
+        return moved;
+    }
+
+    // Decodes the whole UTF-8 sequence an unexpected byte starts, so the
+    // error shows the character rather than a fragment of it.
+    private String character() {
+        int end = current;
+        while (end < length && (source.get(end) & 0xc0) == 0x80) end++;
+        current = end;
+        return text(start, end);
+    }
+
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source.get(current) != expected) return false;
 
         current++;
         return true;
     }
 
-    private char peek() {
+    private byte peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source.get(current);
     }
 
-    private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+    private byte peekNext() {
+        if (current + 1 >= length) return '\0';
+        return source.get(current + 1);
     }
 
-    private boolean isAlpha(char c) {
+    private boolean isAlpha(byte c) {
         return (c >= 'a' && c <= 'z') ||
                (c >= 'A' && c <= 'Z') ||
                 c == '_';
     }
 
-    private boolean isAlphaNumeric(char c) {
+    private boolean isAlphaNumeric(byte c) {
         return isAlpha(c) || isDigit(c);
     }
 
-    private boolean isDigit(char c) {
+    private boolean isDigit(byte c) {
         return c >= '0' && c <= '9';
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
+    }
+
+    private byte advance() {
+        return source.get(current++);
     }
 
-    private char advance() {
-        return source.charAt(current++);
+    private String text(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.duplicate().position(from).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     private void addToken(TokenType type) {
@@ -197,7 +346,6 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line, literal);
     }
 }
@@ -17,8 +17,13 @@ abstract class Stmt {
 
     abstract <R> R accept(Visitor<R> visitor);
 
+    // Counted, and timed in nanoseconds, by the CountingInterpreter.
+    long executions;
+    long nanos;
+
     static class Block extends Stmt {
         final List<Stmt> statements;
+        int scopeSize;
 
         Block(List<Stmt> statements) {
             this.statements = statements;
@@ -46,6 +51,8 @@ abstract class Stmt {
     static class Function extends Stmt {
         final Token name;
         final Expr.Lambda lambda;
+        int local = -1;
+        boolean cell;
 
         Function(Token name, Expr.Lambda lambda) {
             this.name = name;
@@ -61,6 +68,8 @@ abstract class Stmt {
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
+        int local = -1;
+        boolean cell;
 
         Var(Token name, Expr initializer) {
             this.name = name;
@@ -76,10 +85,12 @@ abstract class Stmt {
     static class While extends Stmt {
         final Expr condition;
         final Stmt body;
+        final Expr increment;
 
-        While(Expr condition, Stmt body) {
+        While(Expr condition, Stmt body, Expr increment) {
             this.condition = condition;
             this.body = body;
+            this.increment = increment;
         }
 
         @Override
@@ -121,6 +132,7 @@ abstract class Stmt {
     static class Return extends Stmt {
         final Token keyword;
         final Expr value;
+        boolean tail;
 
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -0,0 +1,207 @@
+package lox;
+
+abstract class StmtNode extends Node {
+    abstract void execute(Environment environment);
+
+    static class Expression extends StmtNode {
+        ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            expression.execute(environment);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            expression = (ExprNode)newChild;
+        }
+    }
+
+    static class GlobalVar extends StmtNode {
+        final Token name;
+        ExprNode initializer;
+
+        GlobalVar(Token name, ExprNode initializer) {
+            this.name = name;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            if (initializer == null) {
+                environment.define(name.symbol, null, false);
+            } else {
+                environment.define(name.symbol, initializer.execute(environment), true);
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            initializer = (ExprNode)newChild;
+        }
+    }
+
+    // Locals are defined in declaration order, which is the order the
+    // Resolver handed out their slots in.
+    static class LocalVar extends StmtNode {
+        ExprNode initializer;
+
+        LocalVar(ExprNode initializer) {
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            Object value = null;
+            if (initializer != null) value = initializer.execute(environment);
+            environment.define(value);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            initializer = (ExprNode)newChild;
+        }
+    }
+
+    static class Block extends StmtNode {
+        final int scopeSize;
+        final StmtNode[] statements;
+
+        Block(int scopeSize, StmtNode[] statements) {
+            this.scopeSize = scopeSize;
+            this.statements = statements;
+            for (StmtNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        void execute(Environment environment) {
+            Environment scope = new Environment(environment, scopeSize);
+            for (StmtNode statement : statements) {
+                statement.execute(scope);
+            }
+        }
+    }
+
+    static class While extends StmtNode {
+        ExprNode condition;
+        final StmtNode body;
+        ExprNode increment;
+
+        While(ExprNode condition, StmtNode body, ExprNode increment) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.increment = adopt(increment);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            while (Interpreter.isTruthy(condition.execute(environment))) {
+                try {
+                    body.execute(environment);
+                } catch (lox.LoopControl controlStmt) {
+                    if (controlStmt.keyword.type == TokenType.BREAK) {
+                        break;
+                    } else if (controlStmt.keyword.type != TokenType.CONTINUE) {
+                        throw new RuntimeError(controlStmt.keyword, "Invalid loop control statement.");
+                    }
+                }
+                if (increment != null) increment.execute(environment);
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            if (condition == oldChild) {
+                condition = (ExprNode)newChild;
+            } else {
+                increment = (ExprNode)newChild;
+            }
+        }
+    }
+
+    static class If extends StmtNode {
+        ExprNode condition;
+        final StmtNode thenBranch;
+        final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            if (Interpreter.isTruthy(condition.execute(environment))) {
+                thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                elseBranch.execute(environment);
+            }
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            condition = (ExprNode)newChild;
+        }
+    }
+
+    static class LoopControl extends StmtNode {
+        final Token keyword;
+
+        LoopControl(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        void execute(Environment environment) {
+            throw new lox.LoopControl(keyword);
+        }
+    }
+
+    static class Return extends StmtNode {
+        ExprNode value;
+
+        Return(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            Object result = null;
+            if (value != null) result = value.execute(environment);
+            throw new lox.Return(result);
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            value = (ExprNode)newChild;
+        }
+    }
+
+    static class PrintSexpr extends StmtNode {
+        final String astOutput;
+        ExprNode expression;
+
+        PrintSexpr(String astOutput, ExprNode expression) {
+            this.astOutput = astOutput;
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            Object value = expression.execute(environment);
+            Lox.context().out.println(astOutput + " → " + Interpreter.stringify(value));
+        }
+
+        @Override
+        void replaceChild(Node oldChild, Node newChild) {
+            expression = (ExprNode)newChild;
+        }
+    }
+}
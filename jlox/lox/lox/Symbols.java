@@ -0,0 +1,47 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Gives every identifier a run sees a small dense number, so globals can be
+// kept in an array indexed by it instead of a map keyed on the name. Each
+// RunContext has its own table, which lives exactly as long as the run
+// does, so a server or batch run working through many scripts never holds
+// more names than the script at hand uses. A RunContext is only ever used
+// by one thread at a time, so the table isn't synchronized.
+final class Symbols {
+    // The natives every engine defines, numbered the same in every table so
+    // the engines can define them before their run has started.
+    private static final String[] NATIVES = { "clock", "print" };
+    static final int CLOCK = 0;
+    static final int PRINT = 1;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[256];
+    private int count = 0;
+
+    Symbols() {
+        for (String name : NATIVES) {
+            intern(name);
+        }
+    }
+
+    static boolean isNative(String name) {
+        return Arrays.asList(NATIVES).contains(name);
+    }
+
+    int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        if (count == names.length) names = Arrays.copyOf(names, count * 2);
+        names[count] = name;
+        ids.put(name, count);
+        return count++;
+    }
+
+    String name(int symbol) {
+        return names[symbol];
+    }
+}
@@ -5,12 +5,21 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // The identifier's number in the run's Symbols, or -1 for any other
+    // token.
+    final int symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line,
+                type == TokenType.IDENTIFIER ? Lox.context().symbols.intern(lexeme) : -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
@@ -0,0 +1,154 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+// The Scanner's output: one entry per token in parallel primitive arrays
+// rather than a Token object each. Identifiers and literals carry their
+// value, everything else is told apart by type alone. Token objects are
+// only made for the tokens the Parser actually keeps.
+//
+// A streamed list pulls tokens from its Scanner as they're asked for and
+// can drop the ones before a given index, so only a window around the
+// Parser's position is ever held. Indexes stay absolute either way.
+class TokenList extends AbstractList<Token> {
+    private static final TokenType[] tokenTypes = TokenType.values();
+    // Text of every token whose lexeme is fixed by its type.
+    private static final String[] fixedLexemes = new String[tokenTypes.length];
+    static {
+        String[][] lexemes = {
+            {"LEFT_PAREN", "("}, {"RIGHT_PAREN", ")"}, {"LEFT_BRACE", "{"},
+            {"RIGHT_BRACE", "}"}, {"COMMA", ","}, {"DOT", "."}, {"MINUS", "-"},
+            {"PLUS", "+"}, {"COLON", ":"}, {"SEMICOLON", ";"}, {"SLASH", "/"},
+            {"STAR", "*"}, {"EROTEME", "?"}, {"EROTEME_DOT", "?."},
+            {"BANG", "!"}, {"BANG_EQUAL", "!="}, {"EQUAL", "="},
+            {"EQUAL_EQUAL", "=="}, {"EQUAL_GREATER", "=>"}, {"GREATER", ">"},
+            {"GREATER_EQUAL", ">="}, {"LESS", "<"}, {"LESS_EQUAL", "<="},
+            {"EOF", ""},
+        };
+        for (String[] lexeme : lexemes) {
+            fixedLexemes[TokenType.valueOf(lexeme[0]).ordinal()] = lexeme[1];
+        }
+        for (String keyword : Scanner.keywords()) {
+            fixedLexemes[Scanner.keyword(keyword).ordinal()] = keyword;
+        }
+    }
+
+    private final ByteBuffer source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    // The interned name of an identifier, or a literal's value.
+    private Object[] values;
+    // An identifier's number in Symbols.
+    private int[] symbols;
+    private int count = 0;
+    // Index of the first token still held.
+    private int offset = 0;
+    // Set while streaming, until the Scanner has added EOF.
+    private Scanner scanner = null;
+
+    TokenList(ByteBuffer source, int capacity) {
+        this.source = source;
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        values = new Object[capacity];
+        symbols = new int[capacity];
+    }
+
+    void stream(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void finish() {
+        scanner = null;
+    }
+
+    // Forgets every token before index.
+    void discardBefore(int index) {
+        int dropped = index - offset;
+        if (dropped <= 0) return;
+
+        count -= dropped;
+        System.arraycopy(types, dropped, types, 0, count);
+        System.arraycopy(starts, dropped, starts, 0, count);
+        System.arraycopy(lengths, dropped, lengths, 0, count);
+        System.arraycopy(lines, dropped, lines, 0, count);
+        System.arraycopy(values, dropped, values, 0, count);
+        System.arraycopy(symbols, dropped, symbols, 0, count);
+        Arrays.fill(values, count, count + dropped, null);
+        offset = index;
+    }
+
+    void add(TokenType type, int start, int length, int line, Object value) {
+        add(type, start, length, line, value, -1);
+    }
+
+    void add(TokenType type, int start, int length, int line, Object value, int symbol) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+        }
+
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        values[count] = value;
+        symbols[count] = symbol;
+        count++;
+    }
+
+    TokenType type(int index) {
+        return tokenTypes[types[slot(index)]];
+    }
+
+    // A number or string token's value, without making the Token.
+    Object literal(int index) {
+        return values[slot(index)];
+    }
+
+    @Override
+    public Token get(int index) {
+        int slot = slot(index);
+        TokenType type = tokenTypes[types[slot]];
+        Object value = values[slot];
+
+        String lexeme = fixedLexemes[type.ordinal()];
+        if (type == TokenType.IDENTIFIER) {
+            return new Token(type, (String)value, null, lines[slot], symbols[slot]);
+        } else if (lexeme == null) {
+            lexeme = text(starts[slot], lengths[slot]);
+        }
+        return new Token(type, lexeme, value, lines[slot], -1);
+    }
+
+    // Tokens scanned so far, counting any already discarded.
+    @Override
+    public int size() {
+        return offset + count;
+    }
+
+    private int slot(int index) {
+        while (scanner != null && index - offset >= count) {
+            scanner.scanNext();
+        }
+        return index - offset;
+    }
+
+    private String text(int start, int length) {
+        byte[] bytes = new byte[length];
+        source.duplicate().position(start).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,397 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// Works out which variables and expressions can only ever hold one kind of
+// value and marks the arithmetic the Interpreter may run unboxed. The
+// program is walked repeatedly, widening types until nothing changes, so
+// assignments later in the source or inside closures are accounted for.
+class TypeInferrer implements Expr.Visitor<TypeInferrer.Type>, Stmt.Visitor<Void> {
+    enum Type {
+        NONE, NUMBER, BOOLEAN, STRING, NIL, FUNCTION, ANY;
+
+        Type join(Type other) {
+            if (this == other || other == NONE) return this;
+            if (this == NONE) return other;
+            return ANY;
+        }
+    }
+
+    private static class FunctionInfo {
+        final Type[] params;
+        Type returns = Type.NONE;
+        // Any use other than a direct call means arguments can come from
+        // places we don't see.
+        boolean escapes = false;
+
+        FunctionInfo(int arity) {
+            params = new Type[arity];
+            Arrays.fill(params, Type.NONE);
+        }
+    }
+
+    // Locals are keyed by their declaring token, globals by name.
+    private final Map<Object, Type> variables = new HashMap<>();
+    private final Map<Object, Expr.Lambda> bindings = new HashMap<>();
+    private final Map<Object, Boolean> rebound = new HashMap<>();
+    private final Map<Expr.Lambda, FunctionInfo> functions = new IdentityHashMap<>();
+    private final Stack<Map<String, Token>> scopes = new Stack<>();
+    private final boolean isRepl;
+    private FunctionInfo currentFunction = null;
+    private boolean changed;
+    private int expressions;
+    private int monomorphic;
+    boolean report = false;
+
+    // In the REPL globals outlive the source being checked, so later lines
+    // may store anything in them.
+    TypeInferrer(boolean isRepl) {
+        this.isRepl = isRepl;
+    }
+
+    void infer(List<Stmt> statements) {
+        do {
+            begin();
+            for (Stmt statement : statements) {
+                infer(statement);
+            }
+        } while (changed);
+        printReport();
+    }
+
+    void infer(Expr expression) {
+        do {
+            begin();
+            typeOf(expression);
+        } while (changed);
+        printReport();
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Type type = typeOf(expr.value);
+        Object key = lookup(expr.name);
+        if (bindings.containsKey(key)) markRebound(key);
+        widen(key, type);
+        return count(type);
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        Type left = typeOf(expr.left);
+        Type right = typeOf(expr.right);
+        expr.unboxed = false;
+
+        switch (expr.operator.type) {
+        case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+            expr.unboxed = left == Type.NUMBER && right == Type.NUMBER;
+            return count(Type.BOOLEAN);
+        case MINUS: case SLASH: case STAR:
+            expr.unboxed = left == Type.NUMBER && right == Type.NUMBER;
+            return count(Type.NUMBER);
+        case PLUS:
+            expr.unboxed = left == Type.NUMBER && right == Type.NUMBER;
+            if (left == Type.STRING || right == Type.STRING) return count(Type.STRING);
+            if (left == Type.NONE || right == Type.NONE) return count(Type.NONE);
+            if (expr.unboxed) return count(Type.NUMBER);
+            return count(Type.ANY);
+        case BANG_EQUAL: case EQUAL_EQUAL:
+            return count(Type.BOOLEAN);
+        default:
+            return count(right);
+        }
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        Type[] arguments = new Type[expr.arguments.size()];
+        FunctionInfo function = null;
+
+        if (expr.callee instanceof Expr.Variable) {
+            Object key = lookup(((Expr.Variable)expr.callee).name);
+            Expr.Lambda lambda = bindings.get(key);
+            if (lambda != null && isFixed(key)) {
+                function = functions.get(lambda);
+            }
+            count(variables.getOrDefault(key, Type.NONE));
+        } else {
+            typeOf(expr.callee);
+        }
+
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = typeOf(expr.arguments.get(i));
+        }
+
+        if (function == null) return count(Type.ANY);
+
+        // A call with the wrong arity fails before running the body.
+        if (arguments.length == function.params.length) {
+            for (int i = 0; i < arguments.length; i++) {
+                Type joined = function.params[i].join(arguments[i]);
+                if (joined != function.params[i]) {
+                    function.params[i] = joined;
+                    changed = true;
+                }
+            }
+        }
+        return count(function.returns);
+    }
+
+    @Override
+    public Type visitLambdaExpr(Expr.Lambda expr) {
+        FunctionInfo function = functions.get(expr);
+        if (function == null) {
+            function = new FunctionInfo(expr.params.size());
+            functions.put(expr, function);
+            changed = true;
+        }
+
+        FunctionInfo enclosingFunction = currentFunction;
+        currentFunction = function;
+
+        scopes.push(new HashMap<>());
+        for (int i = 0; i < expr.params.size(); i++) {
+            Token param = expr.params.get(i);
+            scopes.peek().put(param.lexeme, param);
+            widen(param, isKnown(expr) ? function.params[i] : Type.ANY);
+        }
+        for (Stmt statement : expr.body) {
+            infer(statement);
+        }
+        scopes.pop();
+
+        // Falling off the end of the body returns nil.
+        if (expr.body.isEmpty() ||
+                !(expr.body.get(expr.body.size() - 1) instanceof Stmt.Return)) {
+            returns(function, Type.NIL);
+        }
+
+        currentFunction = enclosingFunction;
+        return count(Type.FUNCTION);
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return count(typeOf(expr.expression));
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) return count(Type.NUMBER);
+        if (expr.value instanceof Boolean) return count(Type.BOOLEAN);
+        if (expr.value instanceof String) return count(Type.STRING);
+        return count(Type.NIL);
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        return count(typeOf(expr.left).join(typeOf(expr.right)));
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        Type right = typeOf(expr.right);
+
+        if (expr.operator.type == TokenType.MINUS) {
+            expr.unboxed = right == Type.NUMBER;
+            return count(Type.NUMBER);
+        }
+        return count(Type.BOOLEAN);
+    }
+
+    @Override
+    public Type visitTernaryExpr(Expr.Ternary expr) {
+        typeOf(expr.expression);
+        return count(typeOf(expr.left).join(typeOf(expr.right)));
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Object key = lookup(expr.name);
+        Expr.Lambda lambda = bindings.get(key);
+        if (lambda != null) {
+            FunctionInfo function = functions.get(lambda);
+            if (function != null && !function.escapes) {
+                function.escapes = true;
+                changed = true;
+            }
+        }
+        return count(variables.getOrDefault(key, Type.NONE));
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashMap<>());
+        for (Stmt statement : stmt.statements) {
+            infer(statement);
+        }
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        typeOf(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Object key = declare(stmt.name);
+        bind(key, stmt.lambda);
+        widen(key, Type.FUNCTION);
+        typeOf(stmt.lambda);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Object key = declare(stmt.name);
+        if (stmt.initializer == null) {
+            widen(key, Type.NIL);
+            return null;
+        }
+
+        if (stmt.initializer instanceof Expr.Lambda) {
+            bind(key, (Expr.Lambda)stmt.initializer);
+        } else if (bindings.containsKey(key)) {
+            markRebound(key);
+        }
+        widen(key, typeOf(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        typeOf(stmt.condition);
+        infer(stmt.body);
+        if (stmt.increment != null) typeOf(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        typeOf(stmt.condition);
+        infer(stmt.thenBranch);
+        if (stmt.elseBranch != null) infer(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControl stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Type type = Type.NIL;
+        if (stmt.value != null) type = typeOf(stmt.value);
+        if (currentFunction != null) returns(currentFunction, type);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintSexprStmt(Stmt.PrintSexpr stmt) {
+        typeOf(stmt.expression);
+        return null;
+    }
+
+    private void infer(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private Type typeOf(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void begin() {
+        changed = false;
+        expressions = 0;
+        monomorphic = 0;
+    }
+
+    private Type count(Type type) {
+        expressions++;
+        if (type != Type.ANY && type != Type.NONE) monomorphic++;
+        return type;
+    }
+
+    private Object declare(Token name) {
+        if (scopes.isEmpty()) return name.lexeme;
+        scopes.peek().put(name.lexeme, name);
+        return name;
+    }
+
+    // Mirrors the Resolver: innermost scope first, anything else is global.
+    private Object lookup(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Token declaration = scopes.get(i).get(name.lexeme);
+            if (declaration != null) return declaration;
+        }
+
+        if (isRepl || Symbols.isNative(name.lexeme)) widen(name.lexeme, Type.ANY);
+        return name.lexeme;
+    }
+
+    private void widen(Object key, Type type) {
+        Type current = variables.getOrDefault(key, Type.NONE);
+        Type joined = current.join(type);
+        if (joined != current) {
+            variables.put(key, joined);
+            changed = true;
+        }
+    }
+
+    private void bind(Object key, Expr.Lambda lambda) {
+        Expr.Lambda bound = bindings.get(key);
+        if (bound == lambda) return;
+
+        if (bound != null ||
+                (key instanceof String && Symbols.isNative((String)key))) {
+            markRebound(key);
+        }
+        bindings.put(key, lambda);
+        changed = true;
+    }
+
+    private void markRebound(Object key) {
+        if (rebound.put(key, true) == null) changed = true;
+    }
+
+    private boolean isKnown(Expr.Lambda lambda) {
+        FunctionInfo function = functions.get(lambda);
+        if (function.escapes) return false;
+
+        for (Map.Entry<Object, Expr.Lambda> binding : bindings.entrySet()) {
+            if (binding.getValue() == lambda) return isFixed(binding.getKey());
+        }
+        return false;
+    }
+
+    // Whether the variable is sure to still hold the function bound to it
+    // whenever it's called. In the REPL a global can be rebound, or its
+    // function called with anything, by a line we haven't seen yet.
+    private boolean isFixed(Object key) {
+        if (isRepl && key instanceof String) return false;
+        return !rebound.containsKey(key);
+    }
+
+    private void returns(FunctionInfo function, Type type) {
+        Type joined = function.returns.join(type);
+        if (joined != function.returns) {
+            function.returns = joined;
+            changed = true;
+        }
+    }
+
+    private void printReport() {
+        if (!report || expressions == 0) return;
+        Lox.context().err.printf("[types] %d of %d expressions monomorphic (%.1f%%)%n",
+                monomorphic, expressions, 100.0 * monomorphic / expressions);
+    }
+}
@@ -0,0 +1,461 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static lox.OpCode.*;
+
+class VM {
+    private static final int FRAMES_MAX = 10000;
+    // Room every frame is guaranteed for its locals and temporaries.
+    private static final int FRAME_SLOTS = 1024;
+    private static final Object UNASSIGNED = new Object();
+    private static final Object UNDEFINED = new Object();
+
+    static class ObjClosure {
+        final ObjFunction function;
+        final ObjUpvalue[] upvalues;
+
+        ObjClosure(ObjFunction function) {
+            this.function = function;
+            this.upvalues = new ObjUpvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class ObjUpvalue {
+        // Index of the captured stack slot, or -1 once closed.
+        int location;
+        Object closed;
+        ObjUpvalue next;
+
+        ObjUpvalue(int location) {
+            this.location = location;
+        }
+    }
+
+    static abstract class ObjNative {
+        final int arity;
+
+        ObjNative(int arity) {
+            this.arity = arity;
+        }
+
+        abstract Object call(Object[] args, int start);
+
+        @Override
+        public String toString() { return "<native fun>"; }
+    }
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[FRAME_SLOTS * 4];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private ObjUpvalue openUpvalues = null;
+    // Indexed by the name's number in Symbols, which the Compiler emits as
+    // the operand of the global instructions.
+    private Object[] globals = new Object[64];
+    boolean disassemble = false;
+
+    VM() {
+        Arrays.fill(globals, UNDEFINED);
+        defineGlobal(Symbols.CLOCK, new ObjNative(0) {
+            @Override
+            Object call(Object[] args, int start) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+        });
+
+        defineGlobal(Symbols.PRINT, new ObjNative(1) {
+            @Override
+            Object call(Object[] args, int start) {
+                Lox.context().out.println(Interpreter.stringify(args[start]));
+                return null;
+            }
+        });
+    }
+
+    void interpret(List<Stmt> statements) {
+        ObjFunction script = Compiler.compile(statements);
+        if (script == null) return;
+
+        try {
+            execute(script);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    void interpret(Expr expression) {
+        ObjFunction script = Compiler.compileExpression(expression);
+        if (script == null) return;
+
+        try {
+            Lox.context().out.println(Interpreter.stringify(execute(script)));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private Object execute(ObjFunction script) {
+        if (disassemble) Debug.disassembleFunction(script, "script");
+
+        try {
+            ObjClosure closure = new ObjClosure(script);
+            push(closure);
+            call(closure, 0);
+            return run();
+        } catch (RuntimeError error) {
+            resetStack();
+            throw error;
+        }
+    }
+
+    private Object run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Object[] stack = this.stack;
+        int ip = frame.ip;
+        int base = frame.base;
+        // Kept in a local while dispatching and written back to stackTop
+        // before anything that leaves this loop.
+        int sp = stackTop;
+
+        for (;;) {
+            switch (code[ip++]) {
+            case OP_CONSTANT:
+                stack[sp++] = constants[code[ip++] & 0xff];
+                break;
+            case OP_CONSTANT_LONG: {
+                int index = code[ip++] & 0xff;
+                index |= (code[ip++] & 0xff) << 8;
+                index |= (code[ip++] & 0xff) << 16;
+                stack[sp++] = constants[index];
+                break;
+            }
+            case OP_NIL: stack[sp++] = null; break;
+            case OP_TRUE: stack[sp++] = true; break;
+            case OP_FALSE: stack[sp++] = false; break;
+            case OP_POP: sp--; break;
+            case OP_GET_LOCAL:
+                stack[sp] = stack[base + (code[ip++] & 0xff)];
+                sp++;
+                break;
+            case OP_SET_LOCAL:
+                stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                break;
+            case OP_GET_GLOBAL: {
+                int symbol = readShort(code, ip);
+                ip += 2;
+                Object value = symbol < globals.length ? globals[symbol] : UNDEFINED;
+                if (value == UNDEFINED || value == UNASSIGNED) {
+                    frame.ip = ip;
+                    throw globalError(symbol, value);
+                }
+                stack[sp++] = value;
+                break;
+            }
+            case OP_DEFINE_GLOBAL:
+                defineGlobal(readShort(code, ip), stack[--sp]);
+                ip += 2;
+                break;
+            case OP_DECLARE_GLOBAL:
+                defineGlobal(readShort(code, ip), UNASSIGNED);
+                ip += 2;
+                break;
+            case OP_SET_GLOBAL: {
+                int symbol = readShort(code, ip);
+                ip += 2;
+                if (symbol >= globals.length || globals[symbol] == UNDEFINED) {
+                    frame.ip = ip;
+                    throw globalError(symbol, UNDEFINED);
+                }
+                globals[symbol] = stack[sp - 1];
+                break;
+            }
+            case OP_GET_UPVALUE: {
+                ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                stack[sp] = upvalue.location != -1 ? stack[upvalue.location] : upvalue.closed;
+                sp++;
+                break;
+            }
+            case OP_SET_UPVALUE: {
+                ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                if (upvalue.location != -1) {
+                    stack[upvalue.location] = stack[sp - 1];
+                } else {
+                    upvalue.closed = stack[sp - 1];
+                }
+                break;
+            }
+            case OP_EQUAL:
+                sp--;
+                stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], stack[sp]);
+                break;
+            case OP_GREATER:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] > (double)stack[sp];
+                break;
+            case OP_GREATER_EQUAL:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] >= (double)stack[sp];
+                break;
+            case OP_LESS:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] < (double)stack[sp];
+                break;
+            case OP_LESS_EQUAL:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] <= (double)stack[sp];
+                break;
+            case OP_SUBTRACT:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] - (double)stack[sp];
+                break;
+            case OP_MULTIPLY:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] * (double)stack[sp];
+                break;
+            case OP_DIVIDE:
+                sp--;
+                checkNumberOperands(frame, ip, stack[sp - 1], stack[sp]);
+                stack[sp - 1] = (double)stack[sp - 1] / (double)stack[sp];
+                break;
+            case OP_ADD: {
+                Object b = stack[--sp];
+                Object a = stack[sp - 1];
+                if (a instanceof Double && b instanceof Double) {
+                    stack[sp - 1] = (double)a + (double)b;
+                } else if (a instanceof String || b instanceof String) {
+                    stack[sp - 1] = Interpreter.stringify(a) + Interpreter.stringify(b);
+                } else {
+                    frame.ip = ip;
+                    throw runtimeError("Operands must be two numbers or two strings.");
+                }
+                break;
+            }
+            case OP_NOT:
+                stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                break;
+            case OP_NEGATE:
+                if (!(stack[sp - 1] instanceof Double)) {
+                    frame.ip = ip;
+                    throw runtimeError("Operand must be a number.");
+                }
+                stack[sp - 1] = -(double)stack[sp - 1];
+                break;
+            case OP_PRINT_SEXPR: {
+                String ast = (String)constants[readShort(code, ip)];
+                ip += 2;
+                Lox.context().out.println(ast + " → " + Interpreter.stringify(stack[--sp]));
+                break;
+            }
+            case OP_JUMP:
+                ip += readShort(code, ip) + 2;
+                break;
+            case OP_JUMP_IF_FALSE:
+                if (!Interpreter.isTruthy(stack[sp - 1])) {
+                    ip += readShort(code, ip);
+                }
+                ip += 2;
+                break;
+            case OP_LOOP:
+                ip -= readShort(code, ip) - 2;
+                break;
+            case OP_CALL: {
+                int argCount = code[ip++] & 0xff;
+                frame.ip = ip;
+                stackTop = sp;
+                callValue(stack[sp - 1 - argCount], argCount);
+                frame = frames[frameCount - 1];
+                code = frame.closure.function.chunk.code;
+                constants = frame.closure.function.chunk.constants;
+                stack = this.stack;
+                ip = frame.ip;
+                base = frame.base;
+                sp = stackTop;
+                break;
+            }
+            case OP_CLOSURE: {
+                ObjFunction function = (ObjFunction)constants[readShort(code, ip)];
+                ip += 2;
+                ObjClosure closure = new ObjClosure(function);
+                stack[sp++] = closure;
+                for (int i = 0; i < closure.upvalues.length; i++) {
+                    boolean isLocal = code[ip++] == 1;
+                    int index = code[ip++] & 0xff;
+                    if (isLocal) {
+                        closure.upvalues[i] = captureUpvalue(base + index);
+                    } else {
+                        closure.upvalues[i] = frame.closure.upvalues[index];
+                    }
+                }
+                break;
+            }
+            case OP_CLOSE_UPVALUE:
+                closeUpvalues(sp - 1);
+                sp--;
+                break;
+            case OP_RETURN: {
+                Object result = stack[--sp];
+                closeUpvalues(base);
+                frameCount--;
+                if (frameCount == 0) {
+                    stackTop = 0;
+                    return result;
+                }
+
+                sp = base;
+                stack[sp++] = result;
+                frame = frames[frameCount - 1];
+                code = frame.closure.function.chunk.code;
+                constants = frame.closure.function.chunk.constants;
+                ip = frame.ip;
+                base = frame.base;
+                break;
+            }
+            }
+        }
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) return;
+        frame.ip = ip;
+        throw runtimeError("Operands must be numbers.");
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure)callee, argCount);
+            return;
+        }
+
+        if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative)callee;
+            checkArity(function.arity, argCount);
+            Object result = function.call(stack, stackTop - argCount);
+            stackTop -= argCount + 1;
+            stack[stackTop++] = result;
+            return;
+        }
+
+        throw runtimeError("Can only call functions and classes.");
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        checkArity(closure.function.arity, argCount);
+
+        if (frameCount == FRAMES_MAX) {
+            throw runtimeError("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        if (stackTop + FRAME_SLOTS > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = stackTop - argCount - 1;
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw runtimeError("Expected " + arity +
+                    " arguments but got " + argCount + ".");
+        }
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue prevUpvalue = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            prevUpvalue = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+
+        ObjUpvalue createdUpvalue = new ObjUpvalue(location);
+        createdUpvalue.next = upvalue;
+
+        if (prevUpvalue == null) {
+            openUpvalues = createdUpvalue;
+        } else {
+            prevUpvalue.next = createdUpvalue;
+        }
+
+        return createdUpvalue;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private RuntimeError runtimeError(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        Chunk chunk = frame.closure.function.chunk;
+        return new RuntimeError(chunk.getLine(frame.ip - 1), message);
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void defineGlobal(int symbol, Object value) {
+        if (symbol >= globals.length) {
+            int length = globals.length;
+            globals = Arrays.copyOf(globals, Math.max(length * 2, symbol + 1));
+            Arrays.fill(globals, length, globals.length, UNDEFINED);
+        }
+        globals[symbol] = value;
+    }
+
+    private RuntimeError globalError(int symbol, Object value) {
+        String name = Lox.context().symbols.name(symbol);
+        if (value == UNASSIGNED) {
+            return runtimeError("Unassigned variable '" + name + "' accessed.");
+        }
+        return runtimeError("Undefined variable '" + name + "'");
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+}
@@ -12,29 +12,34 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign     : Token name, Expr value",
+            "Assign     : Token name, Expr value |" +
+                        " int depth = -1, int slot, int local = -1, int upvalue = -1, boolean cell",
             // "AssignTern : Expr.Ternary ternary, Expr value",
-            "Binary     : Expr left, Token operator, Expr right",
-            "Call       : Expr callee, Token paren, List<Expr> arguments",
-            "Lambda     : List<Token> params, List<Stmt> body",
+            "Binary     : Expr left, Token operator, Expr right | boolean unboxed",
+            "Call       : Expr callee, Token paren, List<Expr> arguments |" +
+                        " Object target, long hits, long misses",
+            "Lambda     : List<Token> params, List<Stmt> body |" +
+                        " int scopeSize, int[] upvalues, boolean[] capturedParams," +
+                        " int hotness, CompiledFunction compiled",
             "Grouping   : Expr expression",
             "Literal    : Object value",
             "Logical    : Expr left, Token operator, Expr right",
-            "Unary      : Token operator, Expr right",
+            "Unary      : Token operator, Expr right | boolean unboxed",
             "Ternary    : Expr expression, Expr left, Expr right",
-            "Variable   : Token name"
+            "Variable   : Token name |" +
+                        " int depth = -1, int slot, int local = -1, int upvalue = -1, boolean cell"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block       : List<Stmt> statements",
+            "Block       : List<Stmt> statements | int scopeSize",
             "Expression  : Expr expression",
-            "Function    : Token name, Expr.Lambda lambda",
-            "Var         : Token name, Expr initializer",
-            "While       : Expr condition, Stmt body",
+            "Function    : Token name, Expr.Lambda lambda | int local = -1, boolean cell",
+            "Var         : Token name, Expr initializer | int local = -1, boolean cell",
+            "While       : Expr condition, Stmt body, Expr increment",
             "If          : Expr condition, Stmt thenBranch," +
                          " Stmt elseBranch",
             "LoopControl : Token keyword",
-            "Return      : Token keyword, Expr value",
+            "Return      : Token keyword, Expr value | boolean tail",
             "PrintSexpr  : Expr expression"
             // "Print       : Expr expression",
         ));
@@ -55,6 +60,10 @@ public class GenerateAst {
         defineVisitor(writer, baseName, types);
         writer.println(indent(1) + "abstract <R> R accept(Visitor<R> visitor);");
         writer.println();
+        writer.println(indent(1) + "// Counted, and timed in nanoseconds, by the CountingInterpreter.");
+        writer.println(indent(1) + "long executions;");
+        writer.println(indent(1) + "long nanos;");
+        writer.println();
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
@@ -87,11 +96,19 @@ public class GenerateAst {
             String className, String fieldList) {
         writer.println(indent(1) + "static class " + className + " extends " + baseName + " {");
 
+        // Fields after a '|' are filled in by later passes, not the parser.
+        String[] parts = fieldList.split("\\|");
+        fieldList = parts[0].trim();
         String[] fields = fieldList.split(", ");
 
         for (String field : fields) {
             writer.println(indent(2) + "final " + field + ";");
         }
+        if (parts.length > 1) {
+            for (String field : parts[1].trim().split(", ")) {
+                writer.println(indent(2) + field + ";");
+            }
+        }
         writer.println();
 
         writer.println(indent(2) + className + "(" + fieldList + ") {");